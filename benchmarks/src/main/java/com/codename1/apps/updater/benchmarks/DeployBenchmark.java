@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater.benchmarks;
+
+import com.codename1.apps.updater.ArtifactStore;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Placing a system artifact within a project. {@code legacyCopy} reads the
+ * whole file into memory and writes it as the original project update loop
+ * did, {@code filesCopy} is a plain file copy and {@code storeDeploy} is what
+ * the updater does now: a hard link to the artifact store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DeployBenchmark {
+
+    @Param({"52428800"})
+    public long size;
+
+    private File dir;
+    private File source;
+    private File target;
+    private ArtifactStore store;
+    private String hash;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        dir = SyntheticArtifacts.createTempDir("deploy");
+        source = SyntheticArtifacts.createFile(new File(dir, "JavaSE.jar"), size);
+        store = new ArtifactStore(new File(dir, "store"));
+        hash = ArtifactStore.sha256(source);
+        store.add(source, hash);
+        File project = new File(dir, "project");
+        project.mkdirs();
+        target = new File(project, "JavaSE.jar");
+    }
+
+    /**
+     * Every invocation starts without a deployed file, otherwise the store
+     * finds the link from the previous invocation and has nothing to do
+     */
+    @Setup(Level.Invocation)
+    public void removeTarget() throws IOException {
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        SyntheticArtifacts.delete(dir);
+    }
+
+    @Benchmark
+    public void legacyCopy() throws IOException {
+        byte[] data = new byte[(int) source.length()];
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(source))) {
+            dis.readFully(data);
+        }
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            fos.write(data);
+        }
+    }
+
+    @Benchmark
+    public void filesCopy() throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Benchmark
+    public void storeDeploy() throws IOException {
+        store.deploy(hash, target);
+    }
+}
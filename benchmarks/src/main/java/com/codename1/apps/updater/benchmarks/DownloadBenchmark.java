@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater.benchmarks;
+
+import com.codename1.apps.updater.ArtifactStore;
+import com.codename1.apps.updater.Downloader;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Download throughput against an HTTP server running in the benchmark JVM on
+ * the loopback interface, this measures the overhead of the download path
+ * itself: buffering, hashing while downloading and writing to disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    @Param({"52428800"})
+    public int size;
+
+    private File dir;
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dir = SyntheticArtifacts.createTempDir("download");
+        final byte[] artifact = SyntheticArtifacts.createData(size, size);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        server.createContext("/JavaSE.jar", exchange -> {
+            exchange.getResponseHeaders().set("ETag", "\"" + size + "\"");
+            exchange.sendResponseHeaders(200, artifact.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(artifact);
+            }
+        });
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/JavaSE.jar";
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        SyntheticArtifacts.delete(dir);
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        File f = Downloader.download(url, new File(dir, "JavaSE.jar"));
+        long length = f.length();
+        f.delete();
+        return length;
+    }
+
+    @Benchmark
+    public byte[] downloadAndHash() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        File f = Downloader.download(url, new File(dir, "JavaSE.jar"), digest);
+        f.delete();
+        return digest.digest();
+    }
+
+    @Benchmark
+    public String downloadThenHash() throws IOException {
+        File f = Downloader.download(url, new File(dir, "JavaSE.jar"));
+        String hash = ArtifactStore.sha256(f);
+        f.delete();
+        return hash;
+    }
+}
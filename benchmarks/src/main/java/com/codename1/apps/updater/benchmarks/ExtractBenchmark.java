@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater.benchmarks;
+
+import com.codename1.apps.updater.UpdateCodenameOne;
+import com.codename1.apps.updater.ZipSync;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of a CEF sized zip. {@code legacyExtract} is the sequential
+ * ZipInputStream loop the updater used before ZipSync, {@code fresh} extracts
+ * into an empty directory with the given number of threads and
+ * {@code unchanged} syncs a directory that is already up to date which is the
+ * common case on a daily update.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExtractBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Archive {
+        @Param({"3000"})
+        public int entries;
+
+        File dir;
+        File zip;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            dir = SyntheticArtifacts.createTempDir("extract");
+            zip = SyntheticArtifacts.createZip(new File(dir, "cef.zip"), entries);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            SyntheticArtifacts.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Target {
+        @Param({"1", "4", "8"})
+        public int threads;
+
+        File dest;
+
+        @Setup(Level.Iteration)
+        public void clear(Archive archive) throws IOException {
+            dest = new File(archive.dir, "fresh");
+            SyntheticArtifacts.delete(dest);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LegacyTarget {
+        File dest;
+
+        @Setup(Level.Iteration)
+        public void clear(Archive archive) throws IOException {
+            dest = new File(archive.dir, "legacy");
+            SyntheticArtifacts.delete(dest);
+            dest.mkdirs();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Synced {
+        @Param({"1", "4", "8"})
+        public int threads;
+
+        File dest;
+
+        @Setup(Level.Trial)
+        public void sync(Archive archive) throws IOException {
+            dest = new File(archive.dir, "synced");
+            ZipSync.sync(archive.zip, dest, threads);
+        }
+    }
+
+    @Benchmark
+    public void legacyExtract(Archive archive, LegacyTarget target) throws IOException {
+        byte[] buffer = new byte[1024];
+        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(archive.zip))) {
+            ZipEntry zipEntry = zis.getNextEntry();
+            while (zipEntry != null) {
+                File newFile = UpdateCodenameOne.newFile(target.dest, zipEntry);
+                if (!zipEntry.isDirectory()) {
+                    newFile.getParentFile().mkdirs();
+                    try (FileOutputStream fos = new FileOutputStream(newFile)) {
+                        int len;
+                        while ((len = zis.read(buffer)) > 0) {
+                            fos.write(buffer, 0, len);
+                        }
+                    }
+                }
+                zipEntry = zis.getNextEntry();
+            }
+        }
+    }
+
+    @Benchmark
+    public int fresh(Archive archive, Target target) throws IOException {
+        return ZipSync.sync(archive.zip, target.dest, target.threads);
+    }
+
+    @Benchmark
+    public int unchanged(Archive archive, Synced synced) throws IOException {
+        return ZipSync.sync(archive.zip, synced.dest, synced.threads);
+    }
+}
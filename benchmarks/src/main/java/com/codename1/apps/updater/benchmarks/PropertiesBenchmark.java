@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater.benchmarks;
+
+import com.codename1.apps.updater.ArtifactStore;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and storing a status file shaped like UpdateStatus.properties, in
+ * memory and through the file system the way the updater writes it: to a
+ * temporary file that is moved over the original.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertiesBenchmark {
+
+    /**
+     * The number of artifacts listed in the status, every artifact has a
+     * version, a hash, a size and a patch list. The status as a whole has a
+     * release, the needed artifacts and a single signature.
+     */
+    @Param({"12"})
+    public int artifacts;
+
+    private File dir;
+    private File file;
+    private Properties status;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        dir = SyntheticArtifacts.createTempDir("properties");
+        file = new File(dir, "UpdateStatus.properties");
+        status = new Properties();
+        StringBuilder needed = new StringBuilder("Updater");
+        for (int iter = 0; iter < artifacts; iter++) {
+            String key = "Artifact" + iter;
+            String hash = ArtifactStore.sha256(SyntheticArtifacts.createFile(new File(dir, key), 1024 + iter));
+            status.setProperty(key, "" + (100 + iter));
+            status.setProperty(key + ".sha256", hash);
+            status.setProperty(key + ".size", "" + (52428800 + iter));
+            status.setProperty(key + ".patches", hash + "," + hash);
+            needed.append(',').append(key);
+        }
+        status.setProperty("Updater", "42");
+        status.setProperty("Updater.sha256", ArtifactStore.sha256(new File(dir, "Artifact0")));
+        status.setProperty("release", "1700000000");
+        status.setProperty("neededArtifacts", needed.toString());
+        // a base64 RSA-2048 signature over the whole status
+        byte[] signature = new byte[256];
+        new Random(artifacts).nextBytes(signature);
+        status.setProperty("signature", Base64.getEncoder().encodeToString(signature));
+        status.setProperty("lastUpdate", "1700000000000");
+        status.setProperty("lastSkinUpdate", "1700000000000");
+        status.setProperty("UpdateStatus.ETag", "\"5f3c-1a2b3c4d\"");
+        status.setProperty("UpdateStatus.Last-Modified", "Tue, 14 Nov 2023 22:13:20 GMT");
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        status.store(bo, "");
+        data = bo.toByteArray();
+        Files.write(file.toPath(), data);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        SyntheticArtifacts.delete(dir);
+    }
+
+    @Benchmark
+    public Properties loadMemory() throws IOException {
+        Properties p = new Properties();
+        p.load(new ByteArrayInputStream(data));
+        return p;
+    }
+
+    @Benchmark
+    public byte[] storeMemory() throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream(data.length);
+        status.store(bo, "");
+        return bo.toByteArray();
+    }
+
+    @Benchmark
+    public Properties loadFile() throws IOException {
+        Properties p = new Properties();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            p.load(fis);
+        }
+        return p;
+    }
+
+    @Benchmark
+    public void storeFileAtomically() throws IOException {
+        File temp = File.createTempFile("UpdateStatus", ".tmp", dir);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            status.store(fos, "");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
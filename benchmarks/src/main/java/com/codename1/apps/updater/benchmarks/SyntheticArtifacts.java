@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the files the benchmarks work on. Everything is derived from a
+ * fixed seed so runs on different machines process identical data and no
+ * network access is needed.
+ */
+public class SyntheticArtifacts {
+
+    private static final long SEED = 0x434E31L;
+
+    private static final byte[] TEXT = ("public class Component extends Object implements Animation {\n"
+            + "    private static final int VALUE = 1;\n").getBytes();
+
+    /**
+     * Creates a working directory for a benchmark, the cn1.benchmark.dir
+     * property places it on a specific disk
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        String parent = System.getProperty("cn1.benchmark.dir");
+        if (parent != null) {
+            return Files.createTempDirectory(new File(parent).toPath(), prefix).toFile();
+        }
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * Returns data that compresses about as well as a jar, half of every block
+     * is random and half is repeated source text
+     */
+    public static byte[] createData(int size, long seed) {
+        Random r = new Random(SEED ^ seed);
+        byte[] data = new byte[size];
+        int block = 4096;
+        for (int offset = 0; offset < size; offset += block) {
+            int len = Math.min(block, size - offset);
+            int random = len / 2;
+            for (int iter = 0; iter < random; iter++) {
+                data[offset + iter] = (byte) r.nextInt();
+            }
+            for (int iter = random; iter < len; iter++) {
+                data[offset + iter] = TEXT[(iter + offset / block) % TEXT.length];
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Writes a file of the given size in chunks so large files don't need to
+     * fit in memory
+     */
+    public static File createFile(File file, long size) throws IOException {
+        byte[] chunk = createData(1024 * 1024, size);
+        try (OutputStream os = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                os.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a zip shaped like the CEF bundle, thousands of small files spread
+     * over nested directories and a few native libraries of several megabytes
+     *
+     * @param file the zip to write
+     * @param entries the number of files in the zip
+     */
+    public static File createZip(File file, int entries) throws IOException {
+        Random r = new Random(SEED ^ entries);
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int iter = 0; iter < entries; iter++) {
+                int size;
+                String name;
+                if (iter % 100 == 0) {
+                    size = 1024 * 1024 + r.nextInt(3 * 1024 * 1024);
+                    name = "lib/native" + iter + ".so";
+                } else {
+                    size = 512 + r.nextInt(32 * 1024);
+                    name = "resources/d" + (iter % 50) + "/s" + (iter % 7) + "/file" + iter + ".pak";
+                }
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write(createData(size, iter));
+                zos.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Deletes the directory and everything in it
+     */
+    public static void delete(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
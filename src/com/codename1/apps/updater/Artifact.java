@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import com.codename1.apps.updater.UpdateCodenameOne.OSType;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Describes a file the updater keeps in ~/.codenameone and optionally places
+ * within projects. The server can publish the list of artifacts in the update
+ * status:
+ * <pre>
+ * artifacts=JavaSEJar,cef-linux
+ * JavaSEJar.url=JavaSE.jar
+ * JavaSEJar.path=JavaSE.jar
+ * JavaSEJar.project=JavaSE.jar
+ * cef-linux.url=cef-linux.zip
+ * cef-linux.path=cef-linux.zip
+ * cef-linux.os=Linux
+ * cef-linux.desktop=true
+ * cef-linux.extract=cef
+ * cef-linux=3
+ * cef-linux.sha256=...
+ * cef-linux.size=84213120
+ * </pre>
+ * The URL is relative to the base URL unless it's absolute. A mirror adds
+ * {@code <key>.mirrorUrl} with the location of an absolute URL within the
+ * mirror. The version and
+ * hash of each artifact are listed under its key as before, along with its size
+ * in bytes which the download must match. The platforms are names of
+ * {@link OSType}, names this version of the updater doesn't know are ignored so
+ * an artifact for a new platform is simply not needed. When the server doesn't
+ * publish a list we use the built in one. The paths come from the
+ * server so they must be relative and stay within the directory they're
+ * resolved against, see {@link #resolve(java.io.File, java.lang.String)}.
+ */
+public class Artifact {
+
+    private final String key;
+    private final String url;
+    private final String path;
+    private final String projectPath;
+    private final Set<OSType> platforms;
+    private final boolean desktop;
+    private final String extract;
+
+    /**
+     * @param key the key of the artifact in the update status files
+     * @param url the URL of the artifact, relative to the base URL unless absolute
+     * @param path the path of the artifact within ~/.codenameone
+     * @param projectPath the path within the project or null if the artifact
+     * isn't placed in projects
+     * @param platforms the platforms that need this artifact or null for all
+     * @param desktop true if the artifact is only needed on machines with a display
+     * @param extract a directory within ~/.codenameone to extract the artifact
+     * into or null
+     */
+    public Artifact(String key, String url, String path, String projectPath, Set<OSType> platforms,
+            boolean desktop, String extract) {
+        this.key = key;
+        this.url = url;
+        this.path = path;
+        this.projectPath = projectPath;
+        this.platforms = platforms;
+        this.desktop = desktop;
+        this.extract = extract;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the URL of the artifact resolved against the base URL
+     */
+    public String getUrl(String baseUrl) {
+        if (isAbsolute()) {
+            return url;
+        }
+        return baseUrl + url;
+    }
+
+    /**
+     * Returns true if the artifact is hosted outside of the base URL
+     */
+    public boolean isAbsolute() {
+        return isAbsolute(url);
+    }
+
+    /**
+     * Checks whether the URL starts with a scheme, file URLs such as
+     * {@code file:/mirror/JavaSE.jar} don't have to contain {@code ://}
+     */
+    private static boolean isAbsolute(String url) {
+        return url.matches("^[a-zA-Z][a-zA-Z0-9+.-]*:.*");
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the file within the project or null if the artifact isn't placed
+     * in projects
+     *
+     * @throws IOException if the path points outside of the project
+     */
+    public File getProjectFile(File project) throws IOException {
+        if (projectPath == null) {
+            return null;
+        }
+        return resolve(project, projectPath);
+    }
+
+    /**
+     * Returns true if the artifact is placed within projects
+     */
+    public boolean isProjectArtifact() {
+        return projectPath != null;
+    }
+
+    public String getExtract() {
+        return extract;
+    }
+
+    /**
+     * Checks whether this machine needs the artifact
+     *
+     * @param os the operating system we're running on
+     * @param headless true if the machine has no display e.g. a build server
+     */
+    public boolean isNeeded(OSType os, boolean headless) {
+        return (platforms == null || platforms.contains(os)) && !(desktop && headless);
+    }
+
+    /**
+     * Resolves a path from the update status within the given directory. The
+     * path must name a file or directory below the directory, empty, absolute
+     * and {@code .} paths are rejected as are paths that leave the directory
+     *
+     * @param dir the directory the path is relative to
+     * @param path the path using forward slashes
+     * @return the file
+     * @throws IOException if the path isn't within the directory
+     */
+    public static File resolve(File dir, String path) throws IOException {
+        checkPath(path);
+        File file = new File(dir, path.replace('/', File.separatorChar));
+        if (!file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator)) {
+            throw new IOException("Path is outside of " + dir.getAbsolutePath() + ": " + path);
+        }
+        return file;
+    }
+
+    private static void checkPath(String path) throws IOException {
+        String trimmed = path.trim();
+        if (trimmed.isEmpty() || trimmed.equals(".") || trimmed.startsWith("/") || trimmed.startsWith("\\")
+                || trimmed.indexOf(':') > -1 || new File(trimmed).isAbsolute()) {
+            throw new IOException("Invalid artifact path: \"" + path + "\"");
+        }
+        for (String segment : trimmed.split("[/\\\\]")) {
+            if (segment.equals("..")) {
+                throw new IOException("Invalid artifact path: \"" + path + "\"");
+            }
+        }
+    }
+
+    /**
+     * Returns the artifacts listed in the update status or null if the update
+     * status doesn't list artifacts
+     *
+     * @throws IOException if an artifact has a path that isn't relative
+     */
+    public static List<Artifact> parse(Properties status) throws IOException {
+        String keys = status.getProperty("artifacts");
+        if (keys == null) {
+            return null;
+        }
+        List<Artifact> artifacts = new ArrayList<>();
+        for (String key : keys.split(",")) {
+            key = key.trim();
+            if (key.length() == 0) {
+                continue;
+            }
+            String path = status.getProperty(key + ".path", key);
+            String project = status.getProperty(key + ".project");
+            String extract = status.getProperty(key + ".extract");
+            checkPath(path);
+            if (project != null) {
+                checkPath(project);
+            }
+            if (extract != null) {
+                checkPath(extract);
+            }
+            Set<OSType> platforms = null;
+            String os = status.getProperty(key + ".os");
+            if (os != null) {
+                platforms = EnumSet.noneOf(OSType.class);
+                for (String p : os.split(",")) {
+                    try {
+                        platforms.add(OSType.valueOf(p.trim()));
+                    } catch (IllegalArgumentException err) {
+                        // a platform newer than this version of the updater
+                    }
+                }
+            }
+            // a mirror serves artifacts hosted elsewhere from within the mirror
+            String url = status.getProperty(key + UpdateCodenameOne.MIRROR_URL_SUFFIX);
+            if (url == null || isAbsolute(url)) {
+                url = status.getProperty(key + ".url", path);
+            }
+            artifacts.add(new Artifact(key, url, path, project, platforms,
+                    Boolean.parseBoolean(status.getProperty(key + ".desktop", "false")), extract));
+        }
+        return Collections.unmodifiableList(artifacts);
+    }
+
+    /**
+     * The artifacts we use when the server doesn't publish a list
+     */
+    public static List<Artifact> getDefaults() {
+        return Collections.unmodifiableList(Arrays.asList(
+                new Artifact("JavaSEJar", "JavaSE.jar", "JavaSE.jar", "JavaSE.jar", null, false, null),
+                new Artifact("CodeNameOneBuildClientJar", "CodeNameOneBuildClient.jar", "CodeNameOneBuildClient.jar", "CodeNameOneBuildClient.jar", null, false, null),
+                new Artifact("CLDC11Jar", "CLDC11.jar", "CLDC11.jar", "lib/CLDC11.jar", null, false, null),
+                new Artifact("CodenameOneJar", "CodenameOne.jar", "CodenameOne.jar", "lib/CodenameOne.jar", null, false, null),
+                new Artifact("CodenameOne_SRCzip", "CodenameOne_SRC.zip", "CodenameOne_SRC.zip", "lib/CodenameOne_SRC.zip", null, false, null),
+                new Artifact("designer", "designer_1.jar", "designer_1.jar", null, null, true, null),
+                new Artifact("guiBuilder", "guibuilder.jar", "guibuilder.jar", null, null, true, null),
+                new Artifact("cef-win", "cef-win.zip", "cef-win.zip", null, EnumSet.of(OSType.Windows), true, "cef"),
+                new Artifact("cef-win64", "cef-win64.zip", "cef-win64.zip", null, EnumSet.of(OSType.Windows64), true, "cef"),
+                new Artifact("cef-mac", "cef-mac.zip", "cef-mac.zip", null, EnumSet.of(OSType.MacOS), true, "cef"),
+                new Artifact("cef-linux", "cef-linux.zip", "cef-linux.zip", null, EnumSet.of(OSType.Linux), true, "cef")));
+    }
+}
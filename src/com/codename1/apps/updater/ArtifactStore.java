@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A content addressed store of the artifacts we downloaded, every file is kept
+ * under its SHA-256 hash. Projects receive hard links to the store entries so
+ * a workspace with many projects doesn't hold a copy of each jar per project,
+ * when hard links aren't supported we fall back to a copy.
+ */
+public class ArtifactStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File root;
+
+    public ArtifactStore(File root) {
+        this.root = root;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the store entry for the given hash, the file might not exist
+     *
+     * @param hash the SHA-256 of the artifact in hex
+     * @return the file within the store
+     * @throws IllegalArgumentException if the hash isn't a SHA-256 in hex,
+     * hashes come from the server so they can't be used as file names otherwise
+     */
+    public File get(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Invalid SHA-256: " + hash);
+        }
+        return new File(root, hash);
+    }
+
+    /**
+     * Checks whether the store has an entry for the given hash
+     */
+    public boolean contains(String hash) {
+        return isHash(hash) && get(hash).exists();
+    }
+
+    /**
+     * Checks whether the string is a SHA-256 in lower case hex
+     */
+    public static boolean isHash(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int iter = 0; iter < hash.length(); iter++) {
+            char c = hash.charAt(iter);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the file to the store, the file itself is left in place
+     *
+     * @param file the file to add
+     * @param hash the SHA-256 of the file in hex
+     */
+    public void add(File file, String hash) throws IOException {
+        File entry = get(hash);
+        if (entry.exists()) {
+            return;
+        }
+        root.mkdirs();
+        Path temp = new File(root, hash + uniqueSuffix()).toPath();
+        link(file.toPath(), temp);
+        try {
+            Downloader.moveIntoPlace(temp.toFile(), entry);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Places the store entry at the given target, replacing the existing file
+     * atomically where the filesystem allows it
+     *
+     * @param hash the SHA-256 of the artifact in hex
+     * @param target the file within the project
+     */
+    public void deploy(String hash, File target) throws IOException {
+        Path source = get(hash).toPath();
+        Path destination = target.getAbsoluteFile().toPath();
+        if (Files.exists(destination) && Files.isSameFile(source, destination)) {
+            return;
+        }
+        Files.createDirectories(destination.getParent());
+        // processes holding the shared lock might deploy the same project together
+        // so the temporary name must be unique
+        Path temp = destination.resolveSibling(target.getName() + uniqueSuffix());
+        link(source, temp);
+        try {
+            Downloader.moveIntoPlace(temp.toFile(), target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Removes every entry that isn't in the given collection of hashes, files
+     * that were deployed as hard links remain intact in the projects. Only
+     * entries are removed, the temporary files of an {@link #add} that might
+     * be running in another process are left alone.
+     *
+     * @param hashes the entries we still need
+     */
+    public void retain(Collection<String> hashes) {
+        File[] entries = root.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (isHash(entry.getName()) && !hashes.contains(entry.getName())) {
+                entry.delete();
+            }
+        }
+    }
+
+    private static String uniqueSuffix() {
+        return "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp";
+    }
+
+    private static void link(Path source, Path link) throws IOException {
+        try {
+            Files.createLink(link, source);
+        } catch (IOException | UnsupportedOperationException err) {
+            // different file systems or a file system without hard links
+            Files.copy(source, link);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 of the given file
+     *
+     * @return the hash in lower case hex
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream is = new FileInputStream(file)) {
+            int len;
+            while ((len = is.read(buffer)) > -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException err) {
+            // SHA-256 is mandatory on every Java platform
+            throw new IllegalStateException(err);
+        }
+    }
+
+    static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
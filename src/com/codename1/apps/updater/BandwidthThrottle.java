@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the bandwidth of downloads by pausing the downloading thread as it
+ * reports its progress, so a prefetch running in the background doesn't compete
+ * with the user for the network. Events are forwarded to another listener.
+ */
+class BandwidthThrottle implements UpdateListener {
+
+    private final long bytesPerSecond;
+    private final UpdateListener delegate;
+    private final long start = System.nanoTime();
+    private final Map<String, Long> positions = new HashMap<>();
+    private long transferred;
+
+    /**
+     * @param bytesPerSecond the rate we allow
+     * @param delegate receives the events
+     */
+    BandwidthThrottle(long bytesPerSecond, UpdateListener delegate) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void progress(String name, long bytes, long total) {
+        delegate.progress(name, bytes, total);
+        long delay;
+        synchronized (this) {
+            // the first report of a resumed download includes what we already had
+            Long previous = positions.put(name, bytes);
+            if (previous != null && bytes > previous) {
+                transferred += bytes - previous;
+            }
+            long expected = transferred * 1000 / bytesPerSecond;
+            delay = expected - (System.nanoTime() - start) / 1000000;
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void completed(UpdateEvent event) {
+        delegate.completed(event);
+    }
+}
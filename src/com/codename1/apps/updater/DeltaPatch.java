@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Applies a binary patch that turns one version of an artifact into another.
+ * The patch is a gzip compressed stream starting with the {@code CN1P} magic
+ * number followed by a sequence of operations, each starting with a byte:
+ * <ul>
+ * <li>{@code 1} copy: a long offset and an int length of a range to copy from
+ * the old file</li>
+ * <li>{@code 2} insert: an int length followed by that many literal bytes</li>
+ * <li>{@code 0} end of the patch</li>
+ * </ul>
+ * The server publishes a patch from an old version of an artifact next to the
+ * artifact as {@code <url>.<oldHash>.<newHash>.patch} and lists the old hash in
+ * {@code <key>.patches} of the update status. Patches are created with
+ * {@link #create(java.io.File, java.io.File, java.io.File)}, from the command
+ * line with {@code UpdateCodenameOne -patch old new patch}.
+ */
+public class DeltaPatch {
+
+    private static final int MAGIC = 0x434E3150;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The size of the blocks of the old file we look for in the new file
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * The multiplier of the rolling hash over a block
+     */
+    private static final int PRIME = 0x01000193;
+
+    /**
+     * Creates a patch that turns the old file into the new file. Every block of
+     * the old file is indexed by a rolling hash, the new file is scanned for
+     * these blocks and a match is extended as far as the files agree. Whatever
+     * doesn't match is inserted literally. Both files are read into memory so
+     * this is meant for the server side.
+     *
+     * @param oldFile the version clients have
+     * @param newFile the version they should end up with
+     * @param patch the patch file to write, it's overwritten
+     * @return the SHA-256 of the new file in hex
+     */
+    public static String create(File oldFile, File newFile, File patch) throws IOException {
+        byte[] old = Files.readAllBytes(oldFile.toPath());
+        byte[] data = Files.readAllBytes(newFile.toPath());
+
+        // the first offset of every block of the old file keyed by its hash
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_SIZE <= old.length; offset += BLOCK_SIZE) {
+            blocks.putIfAbsent(hash(old, offset), offset);
+        }
+        int power = 1;
+        for (int iter = 1; iter < BLOCK_SIZE; iter++) {
+            power *= PRIME;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(patch), BUFFER_SIZE)))) {
+            out.writeInt(MAGIC);
+            ByteArrayOutputStream literal = new ByteArrayOutputStream();
+            int pos = 0;
+            int h = data.length >= BLOCK_SIZE ? hash(data, 0) : 0;
+            while (pos < data.length) {
+                if (pos + BLOCK_SIZE <= data.length) {
+                    Integer match = blocks.get(h);
+                    if (match != null && equal(old, match, data, pos, BLOCK_SIZE)) {
+                        int length = BLOCK_SIZE;
+                        while (match + length < old.length && pos + length < data.length
+                                && old[match + length] == data[pos + length]) {
+                            length++;
+                        }
+                        writeInsert(out, literal);
+                        out.write(OP_COPY);
+                        out.writeLong(match);
+                        out.writeInt(length);
+                        pos += length;
+                        if (pos + BLOCK_SIZE <= data.length) {
+                            h = hash(data, pos);
+                        }
+                        continue;
+                    }
+                    if (pos + BLOCK_SIZE < data.length) {
+                        h = (h - (data[pos] & 0xff) * power) * PRIME + (data[pos + BLOCK_SIZE] & 0xff);
+                    }
+                }
+                literal.write(data[pos]);
+                pos++;
+                if (literal.size() >= BUFFER_SIZE) {
+                    writeInsert(out, literal);
+                }
+            }
+            writeInsert(out, literal);
+            out.write(OP_END);
+        }
+        return ArtifactStore.toHex(ArtifactStore.createDigest().digest(data));
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int iter = 0; iter < BLOCK_SIZE; iter++) {
+            h = h * PRIME + (data[offset + iter] & 0xff);
+        }
+        return h;
+    }
+
+    private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int iter = 0; iter < length; iter++) {
+            if (a[aOffset + iter] != b[bOffset + iter]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(DataOutputStream out, ByteArrayOutputStream literal) throws IOException {
+        if (literal.size() > 0) {
+            out.write(OP_INSERT);
+            out.writeInt(literal.size());
+            literal.writeTo(out);
+            literal.reset();
+        }
+    }
+
+    /**
+     * Applies the patch to the old file and writes the result into the output
+     * file
+     *
+     * @param oldFile the version we have locally
+     * @param patch the patch file
+     * @param output the file to write, it's overwritten
+     * @return the SHA-256 of the output in hex
+     * @throws IOException if the patch is malformed or doesn't fit the old file
+     */
+    public static String apply(File oldFile, File patch, File output) throws IOException {
+        MessageDigest digest = ArtifactStore.createDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(patch), BUFFER_SIZE)));
+                RandomAccessFile old = new RandomAccessFile(oldFile, "r");
+                OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE), digest)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a patch file: " + patch);
+            }
+            while (true) {
+                int op = in.read();
+                switch (op) {
+                    case OP_END:
+                        return ArtifactStore.toHex(digest.digest());
+                    case OP_COPY: {
+                        long offset = in.readLong();
+                        int length = in.readInt();
+                        if (offset < 0 || length < 0 || offset + length > old.length()) {
+                            throw new IOException("Patch copies outside of " + oldFile);
+                        }
+                        old.seek(offset);
+                        while (length > 0) {
+                            int len = Math.min(length, buffer.length);
+                            old.readFully(buffer, 0, len);
+                            out.write(buffer, 0, len);
+                            length -= len;
+                        }
+                        break;
+                    }
+                    case OP_INSERT: {
+                        int length = in.readInt();
+                        if (length < 0) {
+                            throw new IOException("Malformed patch: " + patch);
+                        }
+                        while (length > 0) {
+                            int len = Math.min(length, buffer.length);
+                            in.readFully(buffer, 0, len);
+                            out.write(buffer, 0, len);
+                            length -= len;
+                        }
+                        break;
+                    }
+                    case -1:
+                        throw new EOFException("Patch ended without an end marker: " + patch);
+                    default:
+                        throw new IOException("Unknown patch operation " + op + " in " + patch);
+                }
+            }
+        }
+    }
+}
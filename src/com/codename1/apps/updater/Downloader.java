@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+
+/**
+ * Streams remote artifacts to disk using a fixed size buffer so memory usage
+ * doesn't depend on the size of the artifact. Files are written to a partial
+ * file next to the destination and moved into place once complete, interrupted
+ * downloads are resumed on the next run. Besides HTTP, file URLs are supported
+ * so updates can be served from a mirror on a local or shared drive.
+ * <p>
+ * Every connection has connect and read timeouts so a stalled server can't
+ * hang the build, failed requests are retried with a jittered exponential
+ * backoff. Responses are always read to the end so the JDK can reuse the
+ * connection for the next request to the same server.
+ */
+public class Downloader {
+
+    static final String USER_AGENT = "Mozilla/5.0 (Linux; U; Android 2.2; en-us; Nexus One Build/FRF91) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 Mobile Safari/533.1";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Timeouts in milliseconds, can be set with the cn1.updater.connectTimeout
+     * and cn1.updater.readTimeout properties in seconds
+     */
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("cn1.updater.connectTimeout", 30) * 1000;
+    private static final int READ_TIMEOUT = Integer.getInteger("cn1.updater.readTimeout", 60) * 1000;
+
+    /**
+     * The number of times we retry a failed request, can be set with the
+     * cn1.updater.retries property
+     */
+    private static final int RETRIES = Integer.getInteger("cn1.updater.retries", 3);
+
+    private static final long RETRY_DELAY = 500;
+    private static final long MAX_RETRY_DELAY = 10000;
+
+    /**
+     * Incomplete downloads are kept with this extension next to their
+     * destination until they can be resumed
+     */
+    static final String PARTIAL_EXTENSION = ".partial";
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Opens a connection to the given URL with the headers the server expects
+     *
+     * @param url the URL to connect to
+     * @return the connection, the request isn't sent until it's used
+     */
+    public static URLConnection open(String url) throws IOException {
+        URLConnection con = new URL(url).openConnection();
+        con.setRequestProperty("User-Agent", USER_AGENT);
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(READ_TIMEOUT);
+        return con;
+    }
+
+    /**
+     * A request that can be retried
+     */
+    public interface Request<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs the request and retries it with a jittered exponential backoff if
+     * it fails with an error that might be temporary, a missing file or a
+     * client error fails right away
+     *
+     * @param url the URL of the request for the log
+     * @param request the request
+     * @return the result of the request
+     */
+    public static <T> T withRetries(String url, Request<T> request) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return request.run();
+            } catch (FileNotFoundException err) {
+                throw err;
+            } catch (IOException err) {
+                if (attempt >= RETRIES) {
+                    throw err;
+                }
+                // full jitter keeps clients that failed together from retrying together
+                long delay = (long) (Math.random() * Math.min(MAX_RETRY_DELAY, RETRY_DELAY << attempt));
+                System.out.println("Retrying " + url + " in " + delay + "ms: " + err);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw err;
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws if the response is an error, client errors that retrying won't
+     * fix throw a FileNotFoundException
+     */
+    private static void checkResponse(URLConnection con, String url) throws IOException {
+        int code = getResponseCode(con);
+        if (code < 400) {
+            return;
+        }
+        release(con);
+        if (code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != HTTP_TOO_MANY_REQUESTS) {
+            throw new FileNotFoundException("HTTP " + code + ": " + url);
+        }
+        throw new IOException("HTTP " + code + ": " + url);
+    }
+
+    /**
+     * Reads whatever is left of the response so the connection can be reused,
+     * must be invoked for responses whose body we don't read
+     */
+    public static void release(URLConnection con) {
+        try {
+            InputStream is = con.getInputStream();
+            copy(is, NULL_OUTPUT);
+            is.close();
+        } catch (IOException err) {
+            if (con instanceof HttpURLConnection) {
+                InputStream es = ((HttpURLConnection) con).getErrorStream();
+                if (es != null) {
+                    try {
+                        copy(es, NULL_OUTPUT);
+                        es.close();
+                    } catch (IOException ignored) {
+                        ((HttpURLConnection) con).disconnect();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the HTTP response code of the connection. Other protocols such
+     * as file URLs answer 200, or 304 if the request was made conditional with
+     * {@link #setConditionalHeaders} and the file wasn't modified since.
+     *
+     * @param con the connection, this sends the request
+     */
+    public static int getResponseCode(URLConnection con) throws IOException {
+        if (con instanceof HttpURLConnection) {
+            return ((HttpURLConnection) con).getResponseCode();
+        }
+        // Last-Modified only has a precision of seconds
+        long since = con.getIfModifiedSince();
+        if (since > 0 && con.getLastModified() / 1000 <= since / 1000) {
+            return HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Downloads the URL into a partial file in the directory of the destination,
+     * the destination itself isn't touched. If a previous download of the same
+     * URL was interrupted the transfer resumes from the last byte we have using
+     * a range request, provided the server still has the same version of the
+     * file. Otherwise the download starts over.
+     *
+     * @param url the URL to download
+     * @param destination the file we will eventually write
+     * @return the partial file containing the complete response
+     */
+    public static File download(String url, File destination) throws IOException {
+        return download(url, destination, null);
+    }
+
+    /**
+     * Downloads the URL as {@link #download(java.lang.String, java.io.File)} does
+     * while feeding every byte of the file into the digest, so the caller can
+     * verify the file without reading it again
+     *
+     * @param url the URL to download
+     * @param destination the file we will eventually write
+     * @param digest receives the full content of the file, including the part
+     * of a resumed download we already had, may be null
+     * @return the partial file containing the complete response
+     */
+    public static File download(String url, File destination, MessageDigest digest) throws IOException {
+        return download(url, destination, digest, null);
+    }
+
+    /**
+     * Downloads the URL as {@link #download(java.lang.String, java.io.File, java.security.MessageDigest)}
+     * does while reporting the progress of the transfer
+     *
+     * @param listener receives the progress under the name of the destination
+     * and a download event once the file arrived, may be null
+     */
+    public static File download(String url, File destination, MessageDigest digest, UpdateListener listener) throws IOException {
+        // the partial file is kept when the transfer fails so a retry resumes it
+        return withRetries(url, () -> downloadOnce(url, destination, digest, listener));
+    }
+
+    private static File downloadOnce(String url, File destination, MessageDigest digest, UpdateListener listener) throws IOException {
+        long start = System.nanoTime();
+        File parent = destination.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File partial = new File(parent, destination.getName() + PARTIAL_EXTENSION);
+        File partialState = new File(parent, destination.getName() + PARTIAL_EXTENSION + ".properties");
+
+        Properties state = new Properties();
+        if (partial.exists() && partialState.exists()) {
+            try (InputStream is = new FileInputStream(partialState)) {
+                state.load(is);
+            }
+        }
+        String validator = getRangeValidator(state.getProperty("ETag"), state.getProperty("Last-Modified"));
+        long offset = 0;
+        if (url.equals(state.getProperty("url")) && validator != null) {
+            offset = partial.length();
+        }
+
+        URLConnection con = open(url);
+        if (offset > 0) {
+            con.setRequestProperty("Range", "bytes=" + offset + "-");
+            con.setRequestProperty("If-Range", validator);
+            if (getResponseCode(con) == HTTP_RANGE_NOT_SATISFIABLE) {
+                // the partial file doesn't match what the server has, start over
+                release(con);
+                offset = 0;
+                con = open(url);
+            }
+        }
+        checkResponse(con, url);
+
+        if (getResponseCode(con) == HttpURLConnection.HTTP_PARTIAL && (offset == 0 || getContentRangeStart(con) != offset)) {
+            // a range that doesn't continue our partial file can't be written
+            // anywhere, we ask for the whole file instead
+            release(con);
+            offset = 0;
+            con = open(url);
+            checkResponse(con, url);
+            if (getResponseCode(con) == HttpURLConnection.HTTP_PARTIAL) {
+                release(con);
+                throw new IOException("Partial response to a request for the whole file: " + url);
+            }
+        }
+        boolean append = offset > 0 && getResponseCode(con) == HttpURLConnection.HTTP_PARTIAL;
+        if (!append) {
+            // the server ignored the range or the file changed since we started
+            offset = 0;
+        }
+        long length = con.getContentLengthLong();
+        if (length < 0) {
+            System.out.println("Downloading " + url);
+        } else if (append) {
+            System.out.println("Resuming download at " + offset + " bytes, " + length + " bytes remaining");
+        } else {
+            System.out.println("Downloading " + length + " bytes");
+        }
+
+        try (InputStream is = con.getInputStream()) {
+            state.clear();
+            state.setProperty("url", url);
+            if (con.getHeaderField("ETag") != null) {
+                state.setProperty("ETag", con.getHeaderField("ETag"));
+            }
+            if (con.getHeaderField("Last-Modified") != null) {
+                state.setProperty("Last-Modified", con.getHeaderField("Last-Modified"));
+            }
+            try (OutputStream os = new FileOutputStream(partialState)) {
+                state.store(os, "");
+            }
+
+            // if the transfer is interrupted we leave the partial file and its
+            // state in place so the next run can resume it
+            OutputStream os = new FileOutputStream(partial, append);
+            if (digest != null) {
+                digest.reset();
+                if (append) {
+                    try (InputStream existing = new FileInputStream(partial)) {
+                        copy(existing, new DigestOutputStream(NULL_OUTPUT, digest));
+                    }
+                }
+                os = new DigestOutputStream(os, digest);
+            }
+            long received;
+            try {
+                received = copy(is, os, listener, destination.getName(), offset, length < 0 ? -1 : offset + length);
+            } finally {
+                os.close();
+            }
+            if (length > -1 && received < length) {
+                throw new IOException("Connection closed after " + received + " of " + length + " bytes: " + url);
+            }
+        }
+        partialState.delete();
+        if (listener != null) {
+            listener.completed(new UpdateEvent(UpdateEvent.Phase.DOWNLOAD, destination.getName(),
+                    partial.length() - offset, System.nanoTime() - start, false));
+        }
+        return partial;
+    }
+
+    /**
+     * Returns the value we can send in an If-Range header or null if the server
+     * gave us nothing we can use, weak entity tags aren't allowed in If-Range
+     */
+    private static String getRangeValidator(String etag, String lastModified) {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Returns the first byte of a partial response or -1 if the Content-Range
+     * header is missing or malformed
+     */
+    private static long getContentRangeStart(URLConnection con) {
+        String range = con.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(6, dash).trim());
+        } catch (NumberFormatException err) {
+            return -1;
+        }
+    }
+
+    /**
+     * Makes the request conditional on the validators we stored for a previous
+     * response, the server answers with 304 if the resource didn't change
+     *
+     * @param con the connection before it's used
+     * @param cache the properties holding the validators
+     * @param prefix the prefix under which the validators were stored
+     */
+    public static void setConditionalHeaders(URLConnection con, Properties cache, String prefix) {
+        String etag = cache.getProperty(prefix + ".ETag");
+        if (etag != null) {
+            con.setRequestProperty("If-None-Match", etag);
+        }
+        String lastModified = cache.getProperty(prefix + ".Last-Modified");
+        if (lastModified != null) {
+            if (con instanceof HttpURLConnection) {
+                con.setRequestProperty("If-Modified-Since", lastModified);
+            } else {
+                try {
+                    con.setIfModifiedSince(ZonedDateTime.parse(lastModified, DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toInstant().toEpochMilli());
+                } catch (DateTimeParseException err) {
+                    // the request just won't be conditional
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the validators of the response so a future request can be made
+     * conditional with {@link #setConditionalHeaders}
+     *
+     * @param con a connection whose response was received
+     * @param cache the properties holding the validators
+     * @param prefix the prefix under which the validators are stored
+     */
+    public static void storeValidators(URLConnection con, Properties cache, String prefix) {
+        cache.remove(prefix + ".ETag");
+        cache.remove(prefix + ".Last-Modified");
+        if (con.getHeaderField("ETag") != null) {
+            cache.setProperty(prefix + ".ETag", con.getHeaderField("ETag"));
+        }
+        if (con.getHeaderField("Last-Modified") != null) {
+            cache.setProperty(prefix + ".Last-Modified", con.getHeaderField("Last-Modified"));
+        }
+    }
+
+    /**
+     * Copies validators stored with {@link #storeValidators} from one set of
+     * properties to another
+     */
+    public static void copyValidators(Properties from, Properties to, String prefix) {
+        for (String header : new String[]{".ETag", ".Last-Modified"}) {
+            String value = from.getProperty(prefix + header);
+            if (value == null) {
+                to.remove(prefix + header);
+            } else {
+                to.setProperty(prefix + header, value);
+            }
+        }
+    }
+
+    /**
+     * Moves the temporary file over the destination atomically where the
+     * filesystem allows it
+     *
+     * @param temp the downloaded file
+     * @param destination the final location
+     * @throws IOException if the destination can't be replaced e.g. if it's locked
+     */
+    public static void moveIntoPlace(File temp, File destination) throws IOException {
+        try {
+            Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replaces the file with the given properties atomically, they're written
+     * to a temporary file in the same directory which is then moved into place.
+     * Readers that don't hold the lock never see a file that is half written
+     * and a crash leaves the previous version intact.
+     *
+     * @param properties the properties to store
+     * @param file the file to replace
+     */
+    public static void storeAtomically(Properties properties, File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (OutputStream os = new FileOutputStream(temp)) {
+                properties.store(os, "");
+            }
+            moveIntoPlace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Copies the stream using a fixed size buffer
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream is, OutputStream os) throws IOException {
+        return copy(is, os, null, null, 0, -1);
+    }
+
+    /**
+     * Copies the stream and reports the progress after every buffer
+     *
+     * @param offset the number of bytes of the file we had before the copy
+     * @param total the size of the file or -1 if unknown
+     * @return the number of bytes copied
+     */
+    private static long copy(InputStream is, OutputStream os, UpdateListener listener, String name,
+            long offset, long total) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        int len;
+        while ((len = is.read(buffer)) > -1) {
+            os.write(buffer, 0, len);
+            copied += len;
+            if (listener != null) {
+                listener.progress(name, offset + copied, total);
+            }
+        }
+        return copied;
+    }
+}
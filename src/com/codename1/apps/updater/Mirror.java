@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Copies the current release from the update server into a local directory so
+ * a fleet of machines can share a single download or machines without internet
+ * access can update. The directory can be served by any static web server or
+ * used directly with a file URL, clients point at it with
+ * {@code -Dcn1.updater.mirror=URL}.
+ * <p>
+ * Artifacts are downloaded next to their final location and only moved into
+ * place once all of them arrived, the update status is written last so clients
+ * never see a status that lists files the mirror doesn't have. Artifacts the
+ * mirror already has are skipped so the mirror can be refreshed periodically.
+ */
+public class Mirror {
+
+    static final String UPDATES_DIR = "updates";
+    static final String SKINS_DIR = "OTA";
+
+    /**
+     * Mirrors the update server and the skins into the given directory
+     *
+     * @param dir the root of the mirror
+     */
+    public static void run(File dir) throws Exception {
+        run(dir, UpdateCodenameOne.BASE_URL, UpdateCodenameOne.SKIN_BASE_URL);
+    }
+
+    /**
+     * Mirrors the given servers into the directory
+     *
+     * @param dir the root of the mirror
+     * @param baseUrl the URL of the updates ending with a slash
+     * @param skinBaseUrl the URL of the skins without a trailing slash
+     */
+    public static void run(File dir, String baseUrl, String skinBaseUrl) throws Exception {
+        mirrorUpdates(new File(dir, UPDATES_DIR), baseUrl);
+        mirrorSkins(new File(dir, SKINS_DIR), skinBaseUrl);
+        System.out.println("Mirror is up to date, point clients at it with -Dcn1.updater.mirror=" + dir.getAbsoluteFile().toURI());
+    }
+
+    private static void mirrorUpdates(File dir, String baseUrl) throws Exception {
+        dir.mkdirs();
+        final String statusUrl = baseUrl + "UpdateStatus.properties";
+        final Properties status = new Properties();
+        Downloader.withRetries(statusUrl, () -> {
+            status.clear();
+            try (InputStream is = Downloader.open(statusUrl).getInputStream()) {
+                status.load(is);
+            }
+            return null;
+        });
+        File statusFile = new File(dir, "UpdateStatus.properties");
+        Properties previous = load(statusFile);
+        UpdateCodenameOne.verifySignatures(status, previous.getProperty(UpdateCodenameOne.RELEASE));
+
+        List<Artifact> artifacts = Artifact.parse(status);
+        if (artifacts == null) {
+            artifacts = Artifact.getDefaults();
+        }
+
+        // downloaded files wait next to their destination until everything arrived
+        Map<File, File> downloads = new LinkedHashMap<>();
+        mirrorFile(baseUrl + "UpdateCodenameOne.jar", resolve(dir, "UpdateCodenameOne.jar"),
+                "Updater", status, previous, downloads);
+        for (Artifact artifact : artifacts) {
+            // artifacts hosted elsewhere are served by the mirror as well, the
+            // signed URL is kept and the location in the mirror is added
+            String name = artifact.isAbsolute() ? artifact.getPath() : artifact.getUrl("");
+            if (artifact.isAbsolute()) {
+                status.setProperty(artifact.getKey() + UpdateCodenameOne.MIRROR_URL_SUFFIX, name);
+            }
+            mirrorFile(artifact.getUrl(baseUrl), resolve(dir, name), artifact.getKey(),
+                    status, previous, downloads);
+        }
+
+        for (Map.Entry<File, File> download : downloads.entrySet()) {
+            Downloader.moveIntoPlace(download.getValue(), download.getKey());
+        }
+        Downloader.storeAtomically(status, statusFile);
+        System.out.println("Mirrored " + downloads.size() + " files to " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Downloads the artifact and the patches the server has for it unless the
+     * mirror already has this version
+     */
+    private static void mirrorFile(String url, File destination, String key, Properties status,
+            Properties previous, Map<File, File> downloads) throws IOException {
+        String version = status.getProperty(key);
+        String hash = status.getProperty(key + UpdateCodenameOne.HASH_SUFFIX);
+        if (version == null) {
+            // clients don't download artifacts the server doesn't publish
+            return;
+        }
+        if (destination.exists() && version.equals(previous.getProperty(key))
+                && (hash == null || hash.equals(previous.getProperty(key + UpdateCodenameOne.HASH_SUFFIX)))) {
+            return;
+        }
+        System.out.println("Mirroring: " + url);
+        MessageDigest digest = ArtifactStore.createDigest();
+        File downloaded = Downloader.download(url, destination, digest);
+        if (hash != null && !hash.equals(ArtifactStore.toHex(digest.digest()))) {
+            downloaded.delete();
+            throw new IOException("Downloaded " + url + " doesn't match the published SHA-256");
+        }
+        downloads.put(destination, downloaded);
+
+        String patches = status.getProperty(key + UpdateCodenameOne.PATCHES_SUFFIX);
+        if (hash != null && patches != null) {
+            for (String from : patches.split(",")) {
+                String suffix = "." + from + "." + hash + ".patch";
+                File patch = resolve(destination.getParentFile(), destination.getName() + suffix);
+                if (patch.exists()) {
+                    continue;
+                }
+                try {
+                    downloads.put(patch, Downloader.download(url + suffix, patch));
+                } catch (IOException err) {
+                    // clients fall back to the full download when a patch is missing
+                    System.out.println("Failed to mirror the patch " + url + suffix + ": " + err);
+                }
+            }
+        }
+    }
+
+    private static void mirrorSkins(File dir, String skinBaseUrl) throws Exception {
+        dir.mkdirs();
+        File skinsFile = new File(dir, "Skins.xml");
+        Map<String, String> previous = new LinkedHashMap<>();
+        if (skinsFile.exists()) {
+            try (InputStream is = new FileInputStream(skinsFile)) {
+                previous = readSkinVersions(is);
+            }
+        }
+        File downloadedSkins = Downloader.download(skinBaseUrl + "/Skins.xml", skinsFile);
+        Map<String, String> skins;
+        try (InputStream is = new FileInputStream(downloadedSkins)) {
+            skins = readSkinVersions(is);
+        }
+
+        List<String> updated = new ArrayList<>();
+        for (Map.Entry<String, String> skin : skins.entrySet()) {
+            File skinFile = resolve(dir, skin.getKey());
+            if (skinFile.exists() && skin.getValue().equals(previous.get(skin.getKey()))) {
+                continue;
+            }
+            System.out.println("Mirroring skin " + skin.getKey());
+            skinFile.getParentFile().mkdirs();
+            Downloader.moveIntoPlace(Downloader.download(skinBaseUrl + skin.getKey(), skinFile), skinFile);
+            updated.add(skin.getKey());
+        }
+        Downloader.moveIntoPlace(downloadedSkins, skinsFile);
+        System.out.println("Mirrored " + updated.size() + " skins to " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Returns the version of every skin keyed by the URL of the skin relative
+     * to the skin base URL
+     */
+    private static Map<String, String> readSkinVersions(InputStream is) throws XMLStreamException {
+        Map<String, String> skins = new LinkedHashMap<>();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XMLStreamReader reader = factory.createXMLStreamReader(is);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "Skin".equals(reader.getLocalName())) {
+                    String url = reader.getAttributeValue(null, "url");
+                    if (url != null) {
+                        String version = reader.getAttributeValue(null, "version");
+                        skins.put(url, version == null ? "0" : version);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return skins;
+    }
+
+    /**
+     * Resolves a name the server gave us within the mirror, names that point
+     * outside of the mirror are rejected
+     */
+    private static File resolve(File dir, String name) throws IOException {
+        File file = new File(dir, name);
+        if (!file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator)) {
+            throw new IOException("Path is outside of the mirror: " + name);
+        }
+        return file;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (InputStream is = new FileInputStream(file)) {
+                properties.load(is);
+            }
+        }
+        return properties;
+    }
+}
@@ -26,10 +26,17 @@ package com.codename1.apps.updater;
 import java.io.File;
 
 /**
+ * Replaces a locked file from a separate process so the replacement can
+ * complete after the process holding the lock exits. This is only used on
+ * Windows where a file that's open can't be replaced, the attempts are bounded
+ * and back off up to a few seconds apart.
  *
  * @author shai
  */
 public class Renamer {
+    private static final int ATTEMPTS = 60;
+    private static final long MAX_BACKOFF = 5000;
+
     public static void main(String[] argv) throws Exception {
         File source = new File(argv[0]);
         File destination = new File(argv[1]);
@@ -38,23 +45,13 @@ public class Renamer {
     }
     
     private static void rename(File source, File destination) throws Exception {
-        Thread.sleep(1000);
-        if(destination.exists()) {
-            if(!destination.delete()) {
-                rename(source, destination);
+        long backoff = 250;
+        for (int iter = 0; iter < ATTEMPTS && source.exists(); iter++) {
+            Thread.sleep(backoff);
+            if (ReplaceQueue.tryReplace(source, destination, 1)) {
                 return;
             }
-        }
-
-        try {
-            source.renameTo(destination);
-            if(!destination.exists()) {
-                Thread.sleep(2000);
-                rename(source, destination);
-            }
-        } catch(Exception err) {
-            Thread.sleep(2000);
-            rename(source, destination);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
         }
     }
 }
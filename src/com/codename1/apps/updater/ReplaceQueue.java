@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Replaces files that might be locked by another process, e.g. a jar held open
+ * by the IDE on Windows. A staged file is moved over its destination with a
+ * short bounded backoff, if the destination is still locked the replacement is
+ * queued on disk and retried on the following runs of the updater.
+ */
+public class ReplaceQueue {
+
+    private static final int ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF = 50;
+
+    private final File queueFile;
+
+    /**
+     * @param queueFile the properties file mapping staged files to their destinations
+     */
+    public ReplaceQueue(File queueFile) {
+        this.queueFile = queueFile;
+    }
+
+    /**
+     * Moves the staged file over the destination, retrying a few times if the
+     * destination is locked
+     *
+     * @param staged the complete new version of the file
+     * @param destination the file to replace
+     * @return true if the file was replaced, false if it was queued for a later run
+     */
+    public synchronized boolean replace(File staged, File destination) throws IOException {
+        if (tryReplace(staged, destination, ATTEMPTS)) {
+            return true;
+        }
+        Properties queue = load();
+        queue.setProperty(staged.getAbsolutePath(), destination.getAbsolutePath());
+        save(queue);
+        return false;
+    }
+
+    /**
+     * Checks whether replacements from previous runs are still pending
+     */
+    public boolean hasPending() {
+        return queueFile.exists();
+    }
+
+    /**
+     * Retries the replacements queued by previous runs, entries whose staged
+     * file no longer exists were completed by someone else and are dropped
+     *
+     * @return the number of replacements still pending
+     */
+    public synchronized int retry() throws IOException {
+        if (!queueFile.exists()) {
+            return 0;
+        }
+        Properties queue = load();
+        for (String staged : queue.stringPropertyNames()) {
+            File stagedFile = new File(staged);
+            if (!stagedFile.exists() || tryReplace(stagedFile, new File(queue.getProperty(staged)), 1)) {
+                queue.remove(staged);
+            }
+        }
+        if (queue.isEmpty()) {
+            queueFile.delete();
+        } else {
+            save(queue);
+        }
+        return queue.size();
+    }
+
+    static boolean tryReplace(File staged, File destination, int attempts) {
+        long backoff = INITIAL_BACKOFF;
+        for (int iter = 0; iter < attempts; iter++) {
+            try {
+                Downloader.moveIntoPlace(staged, destination);
+                return true;
+            } catch (IOException err) {
+                if (iter == attempts - 1) {
+                    break;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff *= 2;
+            }
+        }
+        return false;
+    }
+
+    private Properties load() throws IOException {
+        Properties queue = new Properties();
+        if (queueFile.exists()) {
+            try (InputStream is = new FileInputStream(queueFile)) {
+                queue.load(is);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Replaces the queue atomically, a crash while writing must not lose the
+     * replacements that are already queued
+     */
+    private void save(Properties queue) throws IOException {
+        Downloader.storeAtomically(queue, queueFile);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Verifies the signature the server publishes for the update status. The
+ * server signs the whole update status with SHA256withRSA so the versions,
+ * hashes and artifact descriptions can't be changed, moved between artifacts
+ * or dropped. The signed content is every property except the signature
+ * itself, sorted by key, one {@code key=value} line per property terminated by
+ * {@code \n} and encoded as UTF-8. Since the downloaded files are checked
+ * against the signed hashes a valid signature vouches for the files without
+ * another pass over their content. The public key is bundled with the updater
+ * as an X.509 DER encoded resource.
+ */
+public class SignatureVerifier {
+
+    private static final String KEY_RESOURCE = "/com/codename1/apps/updater/UpdateSigningKey.der";
+
+    private final PublicKey key;
+
+    SignatureVerifier(PublicKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Loads the bundled public key
+     *
+     * @return the verifier or null if this build of the updater has no key
+     */
+    public static SignatureVerifier load() throws IOException {
+        try (InputStream is = SignatureVerifier.class.getResourceAsStream(KEY_RESOURCE)) {
+            if (is == null) {
+                return null;
+            }
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            Downloader.copy(is, bo);
+            return new SignatureVerifier(KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bo.toByteArray())));
+        } catch (GeneralSecurityException err) {
+            throw new IOException("Invalid update signing key", err);
+        }
+    }
+
+    /**
+     * Checks the signature of the update status
+     *
+     * @param status the signed properties, without the signature
+     * @param signature the base64 encoded signature
+     * @return true if the signature is valid
+     */
+    public boolean verify(Properties status, String signature) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(key);
+            sig.update(getSignedContent(status));
+            return sig.verify(Base64.getDecoder().decode(signature.trim()));
+        } catch (GeneralSecurityException | IllegalArgumentException err) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the bytes the server signs for the given properties
+     */
+    public static byte[] getSignedContent(Properties status) {
+        StringBuilder b = new StringBuilder();
+        for (String k : new TreeSet<>(status.stringPropertyNames())) {
+            b.append(k).append('=').append(status.getProperty(k)).append('\n');
+        }
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
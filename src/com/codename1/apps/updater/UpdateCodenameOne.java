@@ -23,26 +23,40 @@
 package com.codename1.apps.updater;
 
 import com.codename1.impl.javase.JavaSEPort;
-import java.io.DataInputStream;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.prefs.Preferences;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * A tool meant to update the main files of a Codename One project if they need
@@ -56,77 +70,178 @@ public class UpdateCodenameOne {
     private final String UPDATER_VERSION = "5";
 
     private static final long DAY = 24 * 60 * 60000;
+
+    /**
+     * The number of artifacts we download concurrently when fetching the system
+     * libraries, can be overridden with the cn1.updater.downloadThreads property
+     */
+    private static final int DOWNLOAD_THREADS = Math.max(1, Integer.getInteger("cn1.updater.downloadThreads", 4));
+
+    /**
+     * How long we wait for another updater process to release the lock, can be
+     * overridden in seconds with the cn1.updater.lockTimeout property
+     */
+    private static final long LOCK_TIMEOUT = Integer.getInteger("cn1.updater.lockTimeout", 600) * 1000L;
+
+    /**
+     * The bandwidth a prefetch may use in bytes per second, set in KB/s with
+     * the cn1.updater.prefetchRate property, 0 doesn't limit the prefetch
+     */
+    private static final long PREFETCH_RATE = Integer.getInteger("cn1.updater.prefetchRate", 1024) * 1024L;
+
+    /**
+     * The number of projects we update concurrently in batch mode
+     */
+    private static final int PROJECT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Machines without a display such as build servers skip the artifacts that
+     * are only used by the desktop tools, can be overridden with the
+     * cn1.updater.headless property
+     */
+    private static final boolean HEADLESS = Boolean.parseBoolean(System.getProperty("cn1.updater.headless",
+            "" + GraphicsEnvironment.isHeadless()));
+
     private final File PROP_FILE = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "UpdateStatus.properties");
     private final File LOCK_FILE = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "UpdateStatus.lock");
     private final File UPDATER_JAR = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "UpdateCodenameOne.jar");
     private final File SKIN_DIR = new File(System.getProperty("user.home") + File.separator + ".codenameone");
+    private final ReplaceQueue REPLACE_QUEUE = new ReplaceQueue(new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "PendingReplace.properties"));
+    private final File STAGED_FILE = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "Staged.properties");
+    private final File PREFETCH_LOCK_FILE = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "Prefetch.lock");
+    private final File STAGING_DIR = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "staging");
+    private final File ARTIFACTS_FILE = new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "Artifacts.properties");
+    private final ArtifactStore STORE = new ArtifactStore(new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "store"));
 
-    private static final String KEY_JAVA_SE_JAR = "JavaSEJar";
-    private static final String KEY_BUILD_CLIENT = "CodeNameOneBuildClientJar";
-    private static final String KEY_CLDC = "CLDC11Jar";
-    private static final String KEY_CODENAME_ONE_JAR = "CodenameOneJar";
-
-    private static final String[] KEYS = {
-        KEY_JAVA_SE_JAR,
-        KEY_BUILD_CLIENT,
-        KEY_CLDC,
-        KEY_CODENAME_ONE_JAR,
-        "CodenameOne_SRCzip",
-        "designer",
-        "guiBuilder"
-    };
+    private final List<UpdateListener> listeners = new CopyOnWriteArrayList<>();
 
-    private static final String[] KEYS_CEF = {
-        "cef-win",
-        "cef-win64",
-        "cef-mac",
-        "cef-linux"
-    };
+    /**
+     * Store entries a project sync found modified. Projects are synced under
+     * the shared lock so the entries are only dropped in the exclusive phase
+     */
+    private final Set<String> damagedEntries = ConcurrentHashMap.newKeySet();
 
-    private static final String SKIN_BASE_URL = "https://www.codenameone.com/OTA";
-    private static final String SKIN_XML_URL = SKIN_BASE_URL + "/Skins.xml";
+    /**
+     * Store entries the exclusive phase verified after a project reported them,
+     * mapped to the fingerprint they had then. The daemon keeps the updater
+     * alive indefinitely so an entry that was modified again since is checked
+     * again.
+     */
+    private final Map<String, String> verifiedEntries = new ConcurrentHashMap<>();
 
-    private static final String BASE_URL = "https://www.codenameone.com/files/updates/";
-    private static final String[] URLS = {
-        BASE_URL + "JavaSE.jar",
-        BASE_URL + "CodeNameOneBuildClient.jar",
-        BASE_URL + "CLDC11.jar",
-        BASE_URL + "CodenameOne.jar",
-        BASE_URL + "CodenameOne_SRC.zip",
-        BASE_URL + "designer_1.jar",
-        BASE_URL + "guibuilder.jar"
-    };
+    /**
+     * Forwards the events of the update to the registered listeners
+     */
+    private final UpdateListener EVENTS = new UpdateListener() {
+        @Override
+        public void progress(String name, long bytes, long total) {
+            for (UpdateListener l : listeners) {
+                l.progress(name, bytes, total);
+            }
+        }
 
-    private static final String[] RELATIVE_PATHS = {
-        "JavaSE.jar",
-        "CodeNameOneBuildClient.jar",
-        "CLDC11.jar",
-        "CodenameOne.jar",
-        "CodenameOne_SRC.zip",
-        "designer_1.jar",
-        "guibuilder.jar"
+        @Override
+        public void completed(UpdateEvent event) {
+            for (UpdateListener l : listeners) {
+                l.completed(event);
+            }
+        }
     };
 
-    private void extractFile(File zip, File destination) throws FileNotFoundException, IOException {
-        byte[] buffer = new byte[1024];
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zip))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                File newFile = newFile(destination, zipEntry);
-                if(!newFile.isDirectory()){
-                    FileOutputStream fos = new FileOutputStream(newFile);
-                    int len;
-                    while ((len = zis.read(buffer)) > 0) {
-                        fos.write(buffer, 0, len);
-                    }
-                    fos.close();                    
-                }
-                zipEntry = zis.getNextEntry();
+    /**
+     * Appended to an artifact key to store the SHA-256 of the artifact both in
+     * UpdateStatus.properties and in the Versions.properties of the project
+     */
+    static final String HASH_SUFFIX = ".sha256";
+
+    /**
+     * Appended to an artifact key in the server update status to list the
+     * hashes the server has patches from, a patch is available at the URL of
+     * the artifact followed by {@code .fromHash.toHash.patch}
+     */
+    static final String PATCHES_SUFFIX = ".patches";
+
+    /**
+     * Appended to an artifact key in the server update status for the size of
+     * the artifact in bytes, a download of a different size is rejected
+     */
+    static final String SIZE_SUFFIX = ".size";
+
+    /**
+     * Appended to an artifact key in the Versions.properties of the project to
+     * store the size and modification time of the deployed file
+     */
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    /**
+     * Appended to an artifact key in the Versions.properties of the project to
+     * mark the store entry it was deployed from as modified, the next sync
+     * doesn't have to hash the entry again
+     */
+    private static final String DAMAGED_SUFFIX = ".damaged";
+
+    /**
+     * The key of the base64 signature of the server update status, see
+     * {@link SignatureVerifier}
+     */
+    static final String SIGNATURE = "signature";
+
+    /**
+     * The key of the release number in the server update status, it grows
+     * with every release. When the status is signed we refuse a release older
+     * than the one we installed so an old signed status can't be replayed.
+     */
+    static final String RELEASE = "release";
+
+    /**
+     * Keys that aren't covered by the signature since they are added after the
+     * server signed the status: the location of the artifact within a mirror,
+     * the validators and the time of a prefetch
+     */
+    static final String MIRROR_URL_SUFFIX = ".mirrorUrl";
+    private static final List<String> UNSIGNED = Arrays.asList(SIGNATURE, "prefetched",
+            "UpdateStatus.ETag", "UpdateStatus.Last-Modified");
+
+    /**
+     * The key in UpdateStatus.properties listing the artifacts this machine
+     * needed when the update last completed
+     */
+    private static final String NEEDED_ARTIFACTS = "neededArtifacts";
+
+    /**
+     * The server we update from. A mirror created with {@code -mirror} is used
+     * by setting cn1.updater.mirror to its URL, the two URLs can also be set
+     * individually with cn1.updater.baseUrl and cn1.updater.skinBaseUrl
+     */
+    static final String BASE_URL = getServerUrl("cn1.updater.baseUrl", Mirror.UPDATES_DIR,
+            "https://www.codenameone.com/files/updates") + "/";
+    static final String SKIN_BASE_URL = getServerUrl("cn1.updater.skinBaseUrl", Mirror.SKINS_DIR,
+            "https://www.codenameone.com/OTA");
+    private static final String SKIN_XML_URL = SKIN_BASE_URL + "/Skins.xml";
+    /**
+     * The artifacts we manage, loaded lazily from the list the server published
+     */
+    private List<Artifact> artifacts;
+
+    /**
+     * Returns the URL configured in the given property or the directory within
+     * the configured mirror, without a trailing slash
+     */
+    private static String getServerUrl(String property, String mirrorDir, String defaultUrl) {
+        String url = System.getProperty(property);
+        if (url == null) {
+            String mirror = System.getProperty("cn1.updater.mirror");
+            if (mirror == null) {
+                return defaultUrl;
             }
-            zis.closeEntry();
+            url = mirror.endsWith("/") ? mirror + mirrorDir : mirror + "/" + mirrorDir;
+        }
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
         }
+        return url;
     }
-    
+
     public static File newFile(File destinationDir, ZipEntry zipEntry) throws IOException {
         File destFile = new File(destinationDir, zipEntry.getName());
         if(zipEntry.isDirectory()){
@@ -173,133 +288,654 @@ public class UpdateCodenameOne {
         return detectedOS;
     }
 
-    private boolean checkAndDownloadFile(String url, String localVersion, String remoteVersion,
-            File destination) throws Exception {
-        if (!localVersion.equals(remoteVersion)) {
+    /**
+     * Adds a listener that receives the progress of updates
+     */
+    public void addListener(UpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(UpdateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners that a step which started at the given
+     * {@code System.nanoTime()} completed
+     */
+    private void completed(UpdateEvent.Phase phase, String name, long bytes, long start, boolean cached) {
+        if (!listeners.isEmpty()) {
+            EVENTS.completed(new UpdateEvent(phase, name, bytes, System.nanoTime() - start, cached));
+        }
+    }
+
+    /**
+     * Returns the artifacts the server published in the last update or the
+     * built in list if it didn't publish one
+     */
+    synchronized List<Artifact> getArtifacts() throws IOException {
+        if (artifacts == null) {
+            if (ARTIFACTS_FILE.exists()) {
+                Properties manifest = new Properties();
+                try (FileInputStream fis = new FileInputStream(ARTIFACTS_FILE)) {
+                    manifest.load(fis);
+                }
+                artifacts = Artifact.parse(manifest);
+            }
+            if (artifacts == null) {
+                artifacts = Artifact.getDefaults();
+            }
+        }
+        return artifacts;
+    }
+
+    /**
+     * Stores the list of artifacts published in the server update status, if
+     * the server doesn't publish one we go back to the built in list
+     */
+    private synchronized void storeArtifacts(Properties serverUpdateStatus) throws IOException {
+        List<Artifact> published = Artifact.parse(serverUpdateStatus);
+        if (published == null) {
+            ARTIFACTS_FILE.delete();
+            artifacts = Artifact.getDefaults();
+            return;
+        }
+        Downloader.storeAtomically(serverUpdateStatus, ARTIFACTS_FILE);
+        artifacts = published;
+    }
+
+    /**
+     * Returns the artifacts this machine needs based on the operating system
+     * and whether it has a display
+     */
+    private List<Artifact> getNeededArtifacts() throws IOException {
+        OSType os = getOperatingSystemType();
+        List<Artifact> needed = new ArrayList<>();
+        for (Artifact artifact : getArtifacts()) {
+            if (artifact.isNeeded(os, HEADLESS)) {
+                needed.add(artifact);
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * Returns the artifacts we place within projects
+     */
+    private List<Artifact> getProjectArtifacts() throws IOException {
+        List<Artifact> result = new ArrayList<>();
+        for (Artifact artifact : getNeededArtifacts()) {
+            if (artifact.isProjectArtifact()) {
+                result.add(artifact);
+            }
+        }
+        return result;
+    }
+
+    private File getSystemFile(Artifact artifact) throws IOException {
+        return Artifact.resolve(PROP_FILE.getParentFile(), artifact.getPath());
+    }
+
+    /**
+     * Returns the directory the artifact is extracted into. Extraction deletes
+     * whatever the zip doesn't have so the directory may not hold the store or
+     * the staging area
+     */
+    private File getExtractDir(Artifact artifact) throws IOException {
+        File dir = Artifact.resolve(PROP_FILE.getParentFile(), artifact.getExtract());
+        String path = dir.getCanonicalPath() + File.separator;
+        for (File reserved : new File[]{STORE.getRoot(), STAGING_DIR}) {
+            if (path.startsWith(reserved.getCanonicalPath() + File.separator)) {
+                throw new IOException("Can't extract " + artifact.getKey() + " into " + reserved.getAbsolutePath());
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Downloads the file if the versions differ and adds it to the artifact store.
+     * When the store already has the published hash, e.g. since it was
+     * prefetched, nothing is downloaded. When the server publishes a patch from
+     * the hash we have locally to the new hash we download the patch instead of
+     * the whole file. If the server publishes a hash the file is only moved into
+     * place once it matches.
+     *
+     * @param localHash the SHA-256 of the version we have or null
+     * @param remoteHash the SHA-256 the server advertises or null
+     * @param patches comma separated hashes the server has patches from or null
+     * @param size the size the server advertises or -1
+     * @return the SHA-256 of the downloaded file or null if it was up to date
+     */
+    private String checkAndDownloadFile(String url, String localVersion, String remoteVersion,
+            File destination, String localHash, String remoteHash, String patches, long size) throws Exception {
+        if (localVersion.equals(remoteVersion)) {
+            completed(UpdateEvent.Phase.DOWNLOAD, destination.getName(), 0, System.nanoTime(), true);
+        } else {
             System.out.println("Updating...");
             if (!destination.getParentFile().exists()) {
                 destination.getParentFile().mkdirs();
             }
-            URL u = new URL(url);
-            HttpURLConnection con = (HttpURLConnection) u.openConnection();
-            con.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; U; Android 2.2; en-us; Nexus One Build/FRF91) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 Mobile Safari/533.1");
-            int length = con.getContentLength();
-            System.out.println("Downloading " + length + " bytes");
-            byte[] data = new byte[length];
-            try (DataInputStream dis = new DataInputStream(con.getInputStream())) {
-                dis.readFully(data);
+            String hash;
+            if (remoteHash != null && STORE.contains(remoteHash)) {
+                hash = remoteHash;
+                completed(UpdateEvent.Phase.DOWNLOAD, destination.getName(), 0, System.nanoTime(), true);
+            } else {
+                hash = fetchArtifact(url, destination, localHash, remoteHash, patches, size, EVENTS);
             }
+            File downloaded = new File(destination.getAbsoluteFile().getParentFile(), destination.getName() + ".staged");
+            STORE.deploy(hash, downloaded);
 
-            try (FileOutputStream dos = new FileOutputStream(destination)) {
-                dos.write(data);
+            try {
+                Downloader.moveIntoPlace(downloaded, destination);
             } catch (IOException err) {
-                // probably a file lock... we need to save the file as a "new" file
+                // probably a file lock... we stage the file as a "new" file and swap it
+                // in once the lock is released
                 String path = destination.getAbsolutePath();
                 path = path.substring(0, path.length() - 3) + "new";
+                File staged = new File(path);
                 System.out.println("File is locked writing new file as " + path);
-                try (FileOutputStream dos = new FileOutputStream(path)) {
-                    dos.write(data);
-                }
-                if (!path.contains("UpdateCodenameOne")) {
-                    // rename the file in a separate process
-                    String javaCommand = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
-                    if (new File(javaCommand + "w.exe").exists()) {
-                        javaCommand += "w.exe";
+                Downloader.moveIntoPlace(downloaded, staged);
+                if (!path.contains("UpdateCodenameOne") && !REPLACE_QUEUE.replace(staged, destination)) {
+                    System.out.println("File is still locked, it will be replaced on a later run: " + destination.getAbsolutePath());
+                    OSType os = getOperatingSystemType();
+                    if (os == OSType.Windows || os == OSType.Windows64) {
+                        // Windows won't replace a file while it's open, rename the file in a
+                        // separate process that can finish after the lock is released
+                        String javaCommand = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                        if (new File(javaCommand + "w.exe").exists()) {
+                            javaCommand += "w.exe";
+                        }
+                        ProcessBuilder pb = new ProcessBuilder(javaCommand, "-classpath",
+                                UPDATER_JAR.getAbsolutePath(),
+                                "com.codename1.apps.updater.Renamer",
+                                path, destination.getAbsolutePath());
+                        pb.redirectErrorStream(true);
+                        pb.redirectOutput(File.createTempFile("UpdaterLog", ".log"));
+                        pb.start();
                     }
-                    ProcessBuilder pb = new ProcessBuilder(javaCommand, "-classpath",
-                            UPDATER_JAR.getAbsolutePath(),
-                            "com.codename1.apps.updater.Renamer",
-                            path, destination.getAbsolutePath());
-                    pb.redirectErrorStream(true);
-                    pb.redirectOutput(File.createTempFile("UpdaterLog", ".log"));
-                    pb.start();
                 }
             }
 
-            return true;
+            return hash;
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the artifact into the store, as a patch if the server has one
+     * from the version we have
+     *
+     * @param destination the partial file is written next to this file
+     * @param localHash the SHA-256 of the version we have or null
+     * @param remoteHash the SHA-256 the server advertises or null
+     * @param patches comma separated hashes the server has patches from or null
+     * @param size the size the server advertises or -1
+     * @param listener receives the progress of the download
+     * @return the SHA-256 of the artifact
+     */
+    private String fetchArtifact(String url, File destination, String localHash, String remoteHash,
+            String patches, long size, UpdateListener listener) throws IOException {
+        File downloaded = null;
+        String hash = remoteHash;
+        if (localHash != null && remoteHash != null && patches != null
+                && Arrays.asList(patches.split(",")).contains(localHash) && STORE.contains(localHash)) {
+            downloaded = downloadPatch(url, destination, localHash, remoteHash, listener);
+        }
+        if (downloaded == null) {
+            // the hash is computed as the bytes arrive so verification needs no extra pass
+            MessageDigest digest = ArtifactStore.createDigest();
+            downloaded = Downloader.download(url, destination, digest, listener);
+            hash = ArtifactStore.toHex(digest.digest());
+            if (size > -1 && downloaded.length() != size) {
+                downloaded.delete();
+                throw new IOException("Downloaded " + url + " has " + downloaded.length() + " bytes instead of the published " + size);
+            }
+            if (remoteHash != null && !remoteHash.equals(hash)) {
+                downloaded.delete();
+                throw new IOException("Downloaded " + url + " doesn't match the published SHA-256");
+            }
+        }
+        try {
+            STORE.add(downloaded, hash);
+        } finally {
+            downloaded.delete();
+        }
+        return hash;
+    }
+
+    /**
+     * Downloads the patch from the local version to the remote version and
+     * applies it, if anything goes wrong we return null so the caller falls
+     * back to downloading the full file
+     *
+     * @param listener receives the progress of the download
+     * @return the patched file or null
+     */
+    private File downloadPatch(String url, File destination, String localHash, String remoteHash, UpdateListener listener) {
+        File parent = destination.getAbsoluteFile().getParentFile();
+        File patched = new File(parent, destination.getName() + ".patched");
+        File patch = null;
+        try {
+            System.out.println("Downloading patch for " + destination.getName());
+            patch = Downloader.download(url + "." + localHash + "." + remoteHash + ".patch",
+                    new File(parent, destination.getName() + ".patch"), null, listener);
+            long start = System.nanoTime();
+            String hash = DeltaPatch.apply(STORE.get(localHash), patch, patched);
+            completed(UpdateEvent.Phase.PATCH, destination.getName(), patched.length(), start, false);
+            if (hash.equals(remoteHash)) {
+                return patched;
+            }
+            System.out.println("Patched " + destination.getName() + " doesn't match the expected hash");
+        } catch (IOException err) {
+            System.out.println("Failed to patch " + destination.getName() + ": " + err);
+        } finally {
+            if (patch != null) {
+                patch.delete();
+            }
+        }
+        patched.delete();
+        return null;
+    }
+
+    /**
+     * When this build of the updater bundles a signing key the server update
+     * status must carry a valid signature, must not be older than the release
+     * we have and must publish a hash for every artifact it publishes a version
+     * of, otherwise we refuse to download anything
+     *
+     * @param minRelease the release we installed or null
+     */
+    static void verifySignatures(Properties serverUpdateStatus, String minRelease) throws IOException {
+        verifySignatures(serverUpdateStatus, minRelease, SignatureVerifier.load());
+    }
+
+    static void verifySignatures(Properties serverUpdateStatus, String minRelease,
+            SignatureVerifier verifier) throws IOException {
+        if (verifier == null) {
+            return;
+        }
+        Properties signed = new Properties();
+        for (String key : serverUpdateStatus.stringPropertyNames()) {
+            if (!UNSIGNED.contains(key) && !key.endsWith(MIRROR_URL_SUFFIX)) {
+                signed.setProperty(key, serverUpdateStatus.getProperty(key));
+            }
+        }
+        String signature = serverUpdateStatus.getProperty(SIGNATURE);
+        if (signature == null || !verifier.verify(signed, signature)) {
+            throw new IOException("Invalid signature of the update status");
+        }
+
+        long release;
+        try {
+            release = Long.parseLong(signed.getProperty(RELEASE, "").trim());
+        } catch (NumberFormatException err) {
+            throw new IOException("The signed update status has no release number");
+        }
+        if (minRelease != null && minRelease.matches("\\d+") && release < Long.parseLong(minRelease)) {
+            throw new IOException("The update status is release " + release + " which is older than the installed release " + minRelease);
+        }
+
+        // an unsigned artifact would be downloaded without verification
+        List<String> keys = new ArrayList<>();
+        keys.add("Updater");
+        List<Artifact> published = Artifact.parse(signed);
+        for (Artifact artifact : published == null ? Artifact.getDefaults() : published) {
+            if (signed.getProperty(artifact.getKey()) != null) {
+                keys.add(artifact.getKey());
+            }
+        }
+        for (String key : keys) {
+            if (!ArtifactStore.isHash(signed.getProperty(key + HASH_SUFFIX))) {
+                throw new IOException("The signed update status has no hash for " + key);
+            }
         }
-        return false;
     }
 
-    private void fetchSystemLibraries(Properties updateStatus) throws Exception {
-        URL updateVersions = new URL(BASE_URL + "UpdateStatus.properties");
-        HttpURLConnection con = (HttpURLConnection) updateVersions.openConnection();
-        con.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; U; Android 2.2; en-us; Nexus One Build/FRF91) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 Mobile Safari/533.1");
-        Properties serverUpdateStatus = new Properties();
-        try (InputStream is = con.getInputStream()) {
-            serverUpdateStatus.load(is);
+    private void fetchSystemLibraries(Properties updateStatus, boolean force) throws Exception {
+        final String statusUrl = BASE_URL + "UpdateStatus.properties";
+        final Properties serverUpdateStatus = new Properties();
+        long start = System.nanoTime();
+        URLConnection con = Downloader.withRetries(statusUrl, () -> {
+            URLConnection c = Downloader.open(statusUrl);
+            if (!force) {
+                Downloader.setConditionalHeaders(c, updateStatus, "UpdateStatus");
+            }
+            if (Downloader.getResponseCode(c) == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Downloader.release(c);
+            } else {
+                serverUpdateStatus.clear();
+                try (InputStream is = c.getInputStream()) {
+                    serverUpdateStatus.load(is);
+                }
+            }
+            return c;
+        });
+        boolean unchanged = Downloader.getResponseCode(con) == HttpURLConnection.HTTP_NOT_MODIFIED;
+        completed(UpdateEvent.Phase.MANIFEST, "UpdateStatus.properties", Math.max(0, con.getContentLengthLong()), start, unchanged);
+        if (unchanged) {
+            // nothing changed since the last complete update
+            System.out.println("Update status is unchanged");
+            updateStatus.setProperty("lastUpdate", "" + System.currentTimeMillis());
+            saveUpdateStatus(updateStatus);
+            return;
         }
+        verifySignatures(serverUpdateStatus, updateStatus.getProperty(RELEASE));
+        installSystemLibraries(updateStatus, serverUpdateStatus);
+
+        // we only remember the validators once every artifact is in place, so
+        // a run that failed part way will fetch the update status again
+        Downloader.storeValidators(con, updateStatus, "UpdateStatus");
+        completeSystemUpdate(updateStatus);
+    }
 
+    /**
+     * Brings the artifacts in ~/.codenameone to the versions listed in the
+     * server update status
+     */
+    private void installSystemLibraries(Properties updateStatus, Properties serverUpdateStatus) throws Exception {
         checkAndDownloadFile(BASE_URL + "UpdateCodenameOne.jar",
                 UPDATER_VERSION,
                 serverUpdateStatus.getProperty("Updater", "0"),
-                new File(PROP_FILE.getParentFile(), "UpdateCodenameOne.new"));
-
-        for (int iter = 0; iter < KEYS.length; iter++) {
-            File destination = new File(PROP_FILE.getParentFile(), RELATIVE_PATHS[iter]);
-            System.out.println("Checking: " + RELATIVE_PATHS[iter]);
-            if (checkAndDownloadFile(URLS[iter],
-                    updateStatus.getProperty(KEYS[iter], "0"),
-                    serverUpdateStatus.getProperty(KEYS[iter], "0"),
-                    destination)) {
-                updateStatus.setProperty(KEYS[iter], serverUpdateStatus.getProperty(KEYS[iter], "0"));
-                updateStatus.setProperty("lastUpdate", "" + System.currentTimeMillis());
-                try (FileOutputStream fos = new FileOutputStream(PROP_FILE)) {
-                    updateStatus.store(fos, "");
+                new File(PROP_FILE.getParentFile(), "UpdateCodenameOne.new"),
+                null, serverUpdateStatus.getProperty("Updater" + HASH_SUFFIX), null, getSize(serverUpdateStatus, "Updater"));
+
+        storeArtifacts(serverUpdateStatus);
+
+        // the updater jar above is always fetched on its own, the remaining
+        // artifacts are independent of one another so we download them together
+        ExecutorService downloads = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
+        try {
+            List<Artifact> needed = getNeededArtifacts();
+            List<Future<String>> results = new ArrayList<>();
+            for (Artifact artifact : needed) {
+                System.out.println("Checking: " + artifact.getPath());
+                results.add(submitDownload(downloads, artifact.getUrl(BASE_URL), artifact.getKey(), updateStatus,
+                        serverUpdateStatus, getSystemFile(artifact)));
+            }
+
+            // we record the results in the original order so UpdateStatus.properties
+            // is always written the same way, a failure doesn't discard the downloads
+            // that completed successfully
+            Exception error = null;
+            for (int iter = 0; iter < needed.size(); iter++) {
+                Artifact artifact = needed.get(iter);
+                try {
+                    String hash = awaitDownload(results.get(iter));
+                    if (hash != null) {
+                        if (artifact.getExtract() != null) {
+                            //only the entries that changed are written. We extract from
+                            //the store since the zip itself might still be locked
+                            File dir = getExtractDir(artifact);
+                            long extractStart = System.nanoTime();
+                            int changes = ZipSync.sync(STORE.get(hash), dir);
+                            completed(UpdateEvent.Phase.EXTRACT, artifact.getPath(), STORE.get(hash).length(), extractStart, changes == 0);
+                            System.out.println("Updated " + changes + " files in " + dir.getAbsolutePath());
+                        }
+                        // the version is recorded once the artifact is fully in place, if
+                        // the extraction fails the next run syncs again from the store
+                        storeUpdateStatus(updateStatus, artifact.getKey(), serverUpdateStatus.getProperty(artifact.getKey(), "0"), hash);
+                    }
+                } catch (Exception err) {
+                    if (error == null) {
+                        error = err;
+                    }
                 }
             }
+
+            if (error != null) {
+                throw error;
+            }
+
+            // artifacts that become needed later, e.g. once the machine has a
+            // display, are missing even if the server status didn't change
+            List<String> keys = new ArrayList<>();
+            for (Artifact artifact : needed) {
+                keys.add(artifact.getKey());
+            }
+            updateStatus.setProperty(NEEDED_ARTIFACTS, String.join(",", keys));
+            if (serverUpdateStatus.getProperty(RELEASE) != null) {
+                updateStatus.setProperty(RELEASE, serverUpdateStatus.getProperty(RELEASE).trim());
+            }
+        } finally {
+            downloads.shutdownNow();
         }
+    }
+
+    /**
+     * Records the completed update and drops the store entries we no longer
+     * need, older versions remain available to projects through their hard
+     * links
+     */
+    private void completeSystemUpdate(Properties updateStatus) throws IOException {
+        updateStatus.setProperty("lastUpdate", "" + System.currentTimeMillis());
+        saveUpdateStatus(updateStatus);
+
+        List<String> hashes = new ArrayList<>();
+        collectHashes(updateStatus, hashes);
+        if (STAGED_FILE.exists()) {
+            // a prefetch might be downloading into the store right now
+            collectHashes(loadProperties(STAGED_FILE), hashes);
+        }
+        STORE.retain(hashes);
+    }
+
+    private static void collectHashes(Properties status, List<String> hashes) {
+        for (String key : status.stringPropertyNames()) {
+            if (key.endsWith(HASH_SUFFIX)) {
+                hashes.add(status.getProperty(key));
+            }
+        }
+    }
+
+    private static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            properties.load(fis);
+        }
+        return properties;
+    }
+
+    /**
+     * Downloads the release the server currently publishes into the artifact
+     * store without changing anything in ~/.codenameone. The next update
+     * activates the staged release without going to the network, a prefetch
+     * that fails part way leaves the installed release as it was. The status
+     * is requested conditionally against the staged one so an unchanged release
+     * only resumes the downloads that are still missing. Only one prefetch runs
+     * at a time, a prefetch started while another one is running returns right
+     * away.
+     * <p>
+     * What keeps a prefetch out of the way is the bandwidth limit of
+     * cn1.updater.prefetchRate. The thread priority is lowered too but that's
+     * only a hint, the JVM ignores it on Linux.
+     */
+    void prefetch() throws Exception {
+        try (UpdateLock lock = new UpdateLock(PREFETCH_LOCK_FILE)) {
+            if (!lock.acquire(false, 0)) {
+                System.out.println("Another prefetch is running");
+                return;
+            }
+            int priority = Thread.currentThread().getPriority();
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            try {
+                prefetchRelease();
+            } finally {
+                Thread.currentThread().setPriority(priority);
+            }
+        }
+    }
 
+    private void prefetchRelease() throws Exception {
+        final String statusUrl = BASE_URL + "UpdateStatus.properties";
+        final Properties staged = STAGED_FILE.exists() ? loadProperties(STAGED_FILE) : new Properties();
+        URLConnection con = Downloader.withRetries(statusUrl, () -> {
+            URLConnection c = Downloader.open(statusUrl);
+            Downloader.setConditionalHeaders(c, staged, "UpdateStatus");
+            if (Downloader.getResponseCode(c) == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Downloader.release(c);
+            } else {
+                staged.clear();
+                try (InputStream is = c.getInputStream()) {
+                    staged.load(is);
+                }
+            }
+            return c;
+        });
+        if (Downloader.getResponseCode(con) == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            System.out.println("The staged release is current");
+        } else {
+            Downloader.storeValidators(con, staged, "UpdateStatus");
+        }
+        verifySignatures(staged, loadSystemUpdateStatus().getProperty(RELEASE));
+
+        // the staged status is written before the downloads so an update that
+        // runs meanwhile keeps the new store entries
+        saveStaged(staged);
+
+        Properties updateStatus = loadSystemUpdateStatus();
+        List<Artifact> artifacts = Artifact.parse(staged);
+        if (artifacts == null) {
+            artifacts = Artifact.getDefaults();
+        }
+        UpdateListener listener = PREFETCH_RATE > 0 ? new BandwidthThrottle(PREFETCH_RATE, EVENTS) : EVENTS;
+        int count = 0;
+        if (prefetchFile(BASE_URL + "UpdateCodenameOne.jar", "Updater", UPDATER_VERSION, null, staged, listener)) {
+            count++;
+        }
         OSType os = getOperatingSystemType();
-        String cefKey = "";
-        switch (os) {
-            case Windows:
-                cefKey = KEYS_CEF[0];
-                break;
-            case Windows64:
-                cefKey = KEYS_CEF[1];
-                break;
-            case MacOS:
-                cefKey = KEYS_CEF[2];
-                break;
-            case Linux:
-                cefKey = KEYS_CEF[3];
-                break;
-        }
-        String cefFileName = cefKey + ".zip";
-        File destination = new File(PROP_FILE.getParentFile(), cefFileName);
-        System.out.println("Checking: " + cefFileName);
-        
-        if (checkAndDownloadFile(BASE_URL + cefFileName,
-                updateStatus.getProperty(cefKey, "0"),
-                serverUpdateStatus.getProperty(cefKey, "0"),
-                destination)) {
-            updateStatus.setProperty(cefKey, serverUpdateStatus.getProperty(cefKey, "0"));
-            updateStatus.setProperty("lastUpdate", "" + System.currentTimeMillis());
-            try (FileOutputStream fos = new FileOutputStream(PROP_FILE)) {
-                updateStatus.store(fos, "");
+        for (Artifact artifact : artifacts) {
+            String key = artifact.getKey();
+            if (artifact.isNeeded(os, HEADLESS) && prefetchFile(artifact.getUrl(BASE_URL), key,
+                    updateStatus.getProperty(key, "0"), updateStatus.getProperty(key + HASH_SUFFIX), staged, listener)) {
+                count++;
             }
-            //extract the cef zip to the cef directory
-            File cef = new File(destination.getParentFile(), "cef");
-            cef.mkdir();
-            emptyDirectory(cef);
-            cef = new File(destination.getParentFile(), "cef");
-            cef.mkdir();            
-            extractFile(destination, cef);
         }
 
+        staged.setProperty("prefetched", "" + System.currentTimeMillis());
+        saveStaged(staged);
+        System.out.println("Prefetched " + count + " files");
+    }
+
+    /**
+     * Adds the artifact to the store unless it's installed or already in the
+     * store, artifacts without a published hash can't be verified ahead of time
+     * so the update downloads them
+     *
+     * @return true if the artifact was downloaded
+     */
+    private boolean prefetchFile(String url, String key, String localVersion, String localHash,
+            Properties staged, UpdateListener listener) throws IOException {
+        String remoteHash = staged.getProperty(key + HASH_SUFFIX);
+        if (remoteHash == null || localVersion.equals(staged.getProperty(key, "0")) || STORE.contains(remoteHash)) {
+            return false;
+        }
+        System.out.println("Prefetching: " + url);
+        fetchArtifact(url, Artifact.resolve(STAGING_DIR, key), localHash, remoteHash,
+                staged.getProperty(key + PATCHES_SUFFIX), getSize(staged, key), listener);
+        return true;
+    }
+
+    private void saveStaged(Properties staged) throws IOException {
+        Downloader.storeAtomically(staged, STAGED_FILE);
     }
 
-    private void emptyDirectory(File dir) {
-        for (File file : dir.listFiles()) {
-            if (file.isDirectory()) {
-                emptyDirectory(file);
+    /**
+     * Installs the release staged by a prefetch, its artifacts are already in
+     * the store so this doesn't go to the network. Must be invoked while
+     * holding the exclusive lock.
+     *
+     * @param maxAge a release staged longer ago than this is ignored
+     * @return false if there is no complete staged release
+     */
+    private boolean activateStaged(Properties updateStatus, long maxAge) throws Exception {
+        if (!STAGED_FILE.exists()) {
+            return false;
+        }
+        Properties staged = loadProperties(STAGED_FILE);
+        if (isStale(staged, "prefetched", maxAge)) {
+            return false;
+        }
+        verifySignatures(staged, updateStatus.getProperty(RELEASE));
+        System.out.println("Activating the prefetched update");
+        installSystemLibraries(updateStatus, staged);
+        Downloader.copyValidators(staged, updateStatus, "UpdateStatus");
+        STAGED_FILE.delete();
+        completeSystemUpdate(updateStatus);
+        return true;
+    }
+
+    private Future<String> submitDownload(ExecutorService downloads, final String url, String key,
+            Properties updateStatus, Properties serverUpdateStatus, final File destination) {
+        final String localVersion = updateStatus.getProperty(key, "0");
+        final String remoteVersion = serverUpdateStatus.getProperty(key, "0");
+        final String localHash = updateStatus.getProperty(key + HASH_SUFFIX);
+        final String remoteHash = serverUpdateStatus.getProperty(key + HASH_SUFFIX);
+        final String patches = serverUpdateStatus.getProperty(key + PATCHES_SUFFIX);
+        final long size = getSize(serverUpdateStatus, key);
+        return downloads.submit(() -> checkAndDownloadFile(url, localVersion, remoteVersion, destination,
+                localHash, remoteHash, patches, size));
+    }
+
+    /**
+     * Returns the size the server publishes for the artifact or -1
+     */
+    private static long getSize(Properties serverUpdateStatus, String key) {
+        try {
+            return Long.parseLong(serverUpdateStatus.getProperty(key + SIZE_SUFFIX, "-1").trim());
+        } catch (NumberFormatException err) {
+            return -1;
+        }
+    }
+
+    private String awaitDownload(Future<String> download) throws Exception {
+        try {
+            return download.get();
+        } catch (ExecutionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
-            file.delete();
+            throw err;
         }
     }
-    
-    private Properties loadSystemUpdateStatus() throws Exception {
+
+    private void storeUpdateStatus(Properties updateStatus, String key, String version, String hash) throws IOException {
+        updateStatus.setProperty(key, version);
+        updateStatus.setProperty(key + HASH_SUFFIX, hash);
+        updateStatus.setProperty("lastUpdate", "" + System.currentTimeMillis());
+        saveUpdateStatus(updateStatus);
+    }
+
+    private void saveUpdateStatus(Properties updateStatus) throws IOException {
+        // prepare and the daemon read the status without the lock so it's
+        // replaced atomically and never seen half written
+        Downloader.storeAtomically(updateStatus, PROP_FILE);
+    }
+
+    /**
+     * Returns the hash of the given system artifact making sure it's in the
+     * artifact store, status files written by older versions of the updater
+     * have no hashes so we compute them here once
+     *
+     * @return the SHA-256 of the artifact or null if we don't have it
+     */
+    private String getArtifactHash(Properties updateStatus, String key, File artifact) throws IOException {
+        String hash = updateStatus.getProperty(key + HASH_SUFFIX);
+        if (hash == null || !STORE.contains(hash)) {
+            if (!artifact.exists()) {
+                return null;
+            }
+            long start = System.nanoTime();
+            hash = ArtifactStore.sha256(artifact);
+            completed(UpdateEvent.Phase.VERIFY, artifact.getName(), artifact.length(), start, false);
+            STORE.add(artifact, hash);
+            updateStatus.setProperty(key + HASH_SUFFIX, hash);
+            saveUpdateStatus(updateStatus);
+        }
+        return hash;
+    }
+
+    Properties loadSystemUpdateStatus() throws Exception {
         Properties updateStatus = new Properties();
         if (PROP_FILE.exists()) {
             try (FileInputStream fis = new FileInputStream(PROP_FILE)) {
@@ -311,20 +947,263 @@ public class UpdateCodenameOne {
     }
 
     private void runUpdate(File projectPath, boolean force) throws Exception {
-        // check that a lock file exists but also use a 20 minute timeout to ignore an old lock file
-        if (LOCK_FILE.exists() && LOCK_FILE.lastModified() < System.currentTimeMillis() + 20 * 60000) {
-            System.out.println("Update process in progress lock file exists at: " + LOCK_FILE.getAbsolutePath());
-            return;
+        runUpdate(Collections.singletonList(projectPath), force);
+    }
+
+    /**
+     * Fetches the system libraries once and then brings all of the given
+     * projects up to date in parallel
+     *
+     * @param projects the project roots
+     * @param force true to check for updates even if we checked recently
+     */
+    private void runUpdate(List<File> projects, boolean force) throws Exception {
+        // -Dcn1.updater.metrics=file.json writes a summary of where the time went
+        String metricsFile = System.getProperty("cn1.updater.metrics");
+        UpdateMetrics metrics = null;
+        if (metricsFile != null) {
+            metrics = new UpdateMetrics();
+            addListener(metrics);
+        }
+        try (UpdateLock lock = openLock()) {
+            if (!prepare(lock, force)) {
+                System.out.println("Timed out waiting for the update lock at: " + LOCK_FILE.getAbsolutePath());
+                return;
+            }
+            syncProjects(projects, loadSystemUpdateStatus());
+            if (!damagedEntries.isEmpty()) {
+                // the damaged store entries are downloaded again under the
+                // exclusive lock and then deployed to the projects
+                if (!prepare(lock, false)) {
+                    System.out.println("Timed out waiting for the update lock at: " + LOCK_FILE.getAbsolutePath());
+                    return;
+                }
+                syncProjects(projects, loadSystemUpdateStatus());
+            }
+        } finally {
+            if (metrics != null) {
+                removeListener(metrics);
+                metrics.write(new File(metricsFile));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a project sync found store entries that were modified
+     */
+    boolean hasDamagedEntries() {
+        return !damagedEntries.isEmpty();
+    }
+
+    UpdateLock openLock() throws IOException {
+        return new UpdateLock(LOCK_FILE);
+    }
+
+    File getStatusFile() {
+        return PROP_FILE;
+    }
+
+    /**
+     * Brings ~/.codenameone up to date under the exclusive lock if that's needed
+     * and then leaves the lock in shared mode, projects only need the shared lock
+     * so other processes can update their projects at the same time
+     *
+     * @param lock the lock, it's held in shared mode when this method returns true
+     * @param force true to check for updates even if we checked recently
+     * @return false if we timed out waiting for the lock
+     */
+    boolean prepare(UpdateLock lock, boolean force) throws Exception {
+        return prepare(lock, force, loadSystemUpdateStatus());
+    }
+
+    /**
+     * Same as {@link #prepare(UpdateLock, boolean)} for a caller that already
+     * has the current update status
+     */
+    boolean prepare(UpdateLock lock, boolean force, Properties updateStatus) throws Exception {
+        if (force || needsSystemUpdate(updateStatus)) {
+            if (!lock.acquire(false, LOCK_TIMEOUT)) {
+                return false;
+            }
+            updateSystemLibraries(force, DAY);
         }
-        LOCK_FILE.delete();
-        LOCK_FILE.createNewFile();
-        LOCK_FILE.deleteOnExit();
+        return lock.acquire(true, LOCK_TIMEOUT);
+    }
+
+    private static boolean isStale(Properties updateStatus, String key, long maxAge) {
+        return Long.parseLong(updateStatus.getProperty(key, "0")) < System.currentTimeMillis() - maxAge;
+    }
+
+    /**
+     * Checks whether anything in ~/.codenameone needs to change which requires
+     * the exclusive lock
+     */
+    private boolean needsSystemUpdate(Properties updateStatus) throws IOException {
+        if (isStale(updateStatus, "lastUpdate", DAY) || isStale(updateStatus, "lastSkinUpdate", DAY) || REPLACE_QUEUE.hasPending()) {
+            return true;
+        }
+        for (String hash : damagedEntries) {
+            if (STORE.contains(hash)) {
+                return true;
+            }
+        }
+        for (Artifact artifact : getProjectArtifacts()) {
+            String hash = updateStatus.getProperty(artifact.getKey() + HASH_SUFFIX);
+            if (hash == null ? getSystemFile(artifact).exists() : !STORE.contains(hash)) {
+                return true;
+            }
+        }
+        for (Artifact artifact : getNeededArtifacts()) {
+            if (isMissing(updateStatus, artifact)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the artifact is needed but wasn't needed when the update
+     * last completed so we never fetched it, e.g. the first update ran
+     * headless. Artifacts the server doesn't publish stay without a version
+     * so we only consider the ones we didn't check.
+     */
+    private static boolean isMissing(Properties updateStatus, Artifact artifact) {
+        if (updateStatus.getProperty(artifact.getKey()) != null) {
+            return false;
+        }
+        String checked = updateStatus.getProperty(NEEDED_ARTIFACTS);
+        return checked == null || !Arrays.asList(checked.split(",")).contains(artifact.getKey());
+    }
+
+    /**
+     * Updates the system libraries and skins, must be invoked while holding the
+     * exclusive lock
+     *
+     * @param force true to skip the conditional requests
+     * @param maxAge we check the server if we didn't check within this many
+     * milliseconds, 0 always checks
+     */
+    void updateSystemLibraries(boolean force, long maxAge) throws Exception {
+        // another process might have completed the update while we waited for the lock
         Properties updateStatus = loadSystemUpdateStatus();
-        String lastUpdate = updateStatus.getProperty("lastUpdate", "0");
-        if (force || Long.parseLong(lastUpdate) < System.currentTimeMillis() - DAY) {
-            fetchSystemLibraries(updateStatus);
+        REPLACE_QUEUE.retry();
+        synchronized (this) {
+            // another process might have fetched a new list of artifacts
+            artifacts = null;
+        }
+
+        // store entries a project sync found modified are verified and dropped
+        for (String hash : damagedEntries) {
+            File entry = STORE.get(hash);
+            if (entry.exists() && !ArtifactStore.sha256(entry).equals(hash)) {
+                System.out.println("Dropping the modified store entry " + hash);
+                entry.delete();
+            } else if (entry.exists()) {
+                verifiedEntries.put(hash, getFingerprint(entry));
+            }
+            damagedEntries.remove(hash);
+        }
+
+        // an artifact whose store entry was dropped as damaged is downloaded
+        // again, as is an artifact we need now but never fetched. Both bypass
+        // the conditional request since the server status didn't change
+        boolean damaged = false;
+        for (Artifact artifact : getNeededArtifacts()) {
+            String key = artifact.getKey();
+            String hash = updateStatus.getProperty(key + HASH_SUFFIX);
+            if (hash != null && !STORE.contains(hash)) {
+                updateStatus.setProperty(key, "0");
+                updateStatus.remove(key + HASH_SUFFIX);
+                damaged = true;
+            } else if (isMissing(updateStatus, artifact)) {
+                System.out.println("Fetching the newly needed " + artifact.getPath());
+                damaged = true;
+            }
+        }
+        if (force || damaged || isStale(updateStatus, "lastUpdate", maxAge)) {
+            // a release staged by a recent prefetch is activated without the network
+            if (force || damaged || !activateStaged(updateStatus, maxAge)) {
+                fetchSystemLibraries(updateStatus, force || damaged);
+            }
+        }
+        for (Artifact artifact : getProjectArtifacts()) {
+            getArtifactHash(updateStatus, artifact.getKey(), getSystemFile(artifact));
+        }
+
+        if (isStale(updateStatus, "lastSkinUpdate", maxAge)) {
+            updateSkins(updateStatus);
+            updateStatus.setProperty("lastSkinUpdate", "" + System.currentTimeMillis());
+            saveUpdateStatus(updateStatus);
         }
+    }
+
+    /**
+     * Returns the hashes of the project artifacts keyed by artifact. The
+     * exclusive phase already placed every artifact in the store so this only
+     * reads, it's invoked with the shared lock held and must not change
+     * ~/.codenameone. An artifact that isn't in the store is left out.
+     */
+    Map<String, String> getProjectHashes(Properties updateStatus) throws IOException {
+        Map<String, String> hashes = new HashMap<>();
+        for (Artifact artifact : getProjectArtifacts()) {
+            String hash = updateStatus.getProperty(artifact.getKey() + HASH_SUFFIX);
+            if (STORE.contains(hash)) {
+                hashes.put(artifact.getKey(), hash);
+            }
+        }
+        return hashes;
+    }
 
+    private void syncProjects(List<File> projects, Properties updateStatus) throws Exception {
+        Map<String, String> hashes = getProjectHashes(updateStatus);
+
+        if (projects.size() == 1) {
+            List<String> updated = syncProject(projects.get(0), updateStatus, hashes);
+            if (updated.isEmpty()) {
+                System.out.println("Project files are up to date");
+            } else {
+                System.out.println("Updated project files");
+            }
+        } else {
+            ExecutorService workers = Executors.newFixedThreadPool(Math.min(projects.size(), PROJECT_THREADS));
+            try {
+                List<Future<List<String>>> results = new ArrayList<>();
+                for (final File project : projects) {
+                    results.add(workers.submit(() -> syncProject(project, updateStatus, hashes)));
+                }
+                List<String> summary = new ArrayList<>();
+                for (int iter = 0; iter < projects.size(); iter++) {
+                    String path = projects.get(iter).getAbsolutePath();
+                    try {
+                        List<String> updated = results.get(iter).get();
+                        if (updated.isEmpty()) {
+                            summary.add(path + ": up to date");
+                        } else {
+                            summary.add(path + ": updated " + String.join(", ", updated));
+                        }
+                    } catch (ExecutionException err) {
+                        summary.add(path + ": failed " + err.getCause());
+                    }
+                }
+                System.out.println("Update summary:");
+                for (String line : summary) {
+                    System.out.println(line);
+                }
+            } finally {
+                workers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Brings the files of a single project up to date with the system libraries
+     *
+     * @param projectPath the project root
+     * @param updateStatus the system update status, it isn't modified
+     * @param hashes the hashes of the project artifacts keyed by artifact
+     * @return the files that were updated, relative to the project root
+     */
+    List<String> syncProject(File projectPath, Properties updateStatus, Map<String, String> hashes) throws Exception {
         File projectUpdateProperties = new File(projectPath, "Versions.properties");
         Properties projectVersions = new Properties();
         if (projectUpdateProperties.exists()) {
@@ -333,107 +1212,292 @@ public class UpdateCodenameOne {
             }
         }
 
-        File[] projectPaths = new File[]{
-            new File(projectPath, "JavaSE.jar"),
-            new File(projectPath, "CodeNameOneBuildClient.jar"),
-            new File(projectPath, "lib" + File.separator + "CLDC11.jar"),
-            new File(projectPath, "lib" + File.separator + "CodenameOne.jar"),
-            new File(projectPath, "lib" + File.separator + "CodenameOne_SRC.zip")
-        };
-
-        boolean updateFile = false;
-        for (int iter = 0; iter < projectPaths.length; iter++) {
-            String updatedVersion = updateStatus.getProperty(KEYS[iter], "0");
-            if (!projectVersions.getProperty(KEYS[iter], "0").equals(updatedVersion)) {
-                File from = new File(PROP_FILE.getParentFile(), RELATIVE_PATHS[iter]);
-                if (!from.exists()) {
-                    System.out.println("File not found: " + projectPaths[iter].getAbsolutePath());
-                    continue;
-                }
-                System.out.println("Updating the file: " + projectPaths[iter].getAbsolutePath());
-                byte[] data = new byte[(int) from.length()];
-                try (DataInputStream dis = new DataInputStream(new FileInputStream(from))) {
-                    dis.readFully(data);
+        List<String> updated = new ArrayList<>();
+        boolean changed = false;
+        for (Artifact artifact : getProjectArtifacts()) {
+            String key = artifact.getKey();
+            File file = artifact.getProjectFile(projectPath);
+            String updatedVersion = updateStatus.getProperty(key, "0");
+            String hash = hashes.get(key);
+            String relativePath = projectPath.toPath().relativize(file.toPath()).toString();
+            long start = System.nanoTime();
+            boolean upToDate;
+            if (hash != null) {
+                // the fingerprint lets us notice a deployed file that was deleted or
+                // modified with a couple of stat calls instead of hashing it
+                upToDate = hash.equals(projectVersions.getProperty(key + HASH_SUFFIX));
+                if (upToDate && !getFingerprint(file).equals(projectVersions.getProperty(key + FINGERPRINT_SUFFIX))) {
+                    if (!checkStoreEntry(hash, file, projectVersions.getProperty(key + DAMAGED_SUFFIX))) {
+                        damagedEntries.add(hash);
+                        if (!hash.equals(projectVersions.getProperty(key + DAMAGED_SUFFIX))) {
+                            projectVersions.setProperty(key + DAMAGED_SUFFIX, hash);
+                            changed = true;
+                        }
+                        continue;
+                    }
+                    upToDate = false;
                 }
-                try (FileOutputStream fos = new FileOutputStream(projectPaths[iter])) {
-                    fos.write(data);
+            } else {
+                upToDate = projectVersions.getProperty(key, "0").equals(updatedVersion);
+            }
+            if (!upToDate) {
+                if (hash == null) {
+                    System.out.println("File not found: " + file.getAbsolutePath());
+                    continue;
                 }
-                projectVersions.setProperty(KEYS[iter], updatedVersion);
-                updateFile = true;
+                System.out.println("Updating the file: " + file.getAbsolutePath());
+                STORE.deploy(hash, file);
+                completed(UpdateEvent.Phase.DEPLOY, relativePath, file.length(), start, false);
+                projectVersions.setProperty(key, updatedVersion);
+                projectVersions.setProperty(key + HASH_SUFFIX, hash);
+                projectVersions.setProperty(key + FINGERPRINT_SUFFIX, getFingerprint(file));
+                projectVersions.remove(key + DAMAGED_SUFFIX);
+                updated.add(relativePath);
+            } else {
+                completed(UpdateEvent.Phase.DEPLOY, relativePath, 0, start, true);
             }
         }
 
-        long lastSkinUpdate = Long.parseLong(updateStatus.getProperty("lastSkinUpdate", "0"));
-        if (lastSkinUpdate < System.currentTimeMillis() - DAY) {
-            updateSkins();
-            updateStatus.setProperty("lastSkinUpdate", "" + System.currentTimeMillis());
-            updateFile = true;
+        if (changed || !updated.isEmpty()) {
+            // written atomically since another process might be updating this project
+            Downloader.storeAtomically(projectVersions, projectUpdateProperties);
         }
+        return updated;
+    }
 
-        if (updateFile) {
-            System.out.println("Updated project files");
-            try (FileOutputStream fos = new FileOutputStream(projectUpdateProperties)) {
-                projectVersions.store(fos, "");
+    private static String getFingerprint(File file) {
+        return file.length() + "," + file.lastModified();
+    }
+
+    /**
+     * Called when a deployed file no longer matches its fingerprint. If the file
+     * is a hard link to the store entry the entry itself was modified, in that
+     * case we verify it. We only hold the shared lock so a damaged entry is
+     * left in place, the exclusive phase drops it and downloads it again.
+     *
+     * @param damaged the hash the project already marked as damaged or null,
+     * we don't hash the entry again while it's the same file
+     * @return true if the store entry is intact and can be deployed again
+     */
+    private boolean checkStoreEntry(String hash, File deployed, String damaged) throws IOException {
+        File entry = STORE.get(hash);
+        if (!entry.exists()) {
+            return false;
+        }
+        if (!deployed.exists() || !Files.isSameFile(entry.toPath(), deployed.toPath()) || getFingerprint(entry).equals(verifiedEntries.get(hash))) {
+            return true;
+        }
+        if (!hash.equals(damaged)) {
+            long start = System.nanoTime();
+            boolean intact = ArtifactStore.sha256(entry).equals(hash);
+            completed(UpdateEvent.Phase.VERIFY, deployed.getName(), entry.length(), start, false);
+            if (intact) {
+                return true;
             }
-        } else {
-            System.out.println("Project files are up to date");
         }
+        System.out.println("The file was modified, it will be downloaded again: " + deployed.getAbsolutePath());
+        return false;
+    }
+
+    /**
+     * Finds the Codename One projects under the given directory, a directory is
+     * a project if it has a Versions.properties or codenameone_settings.properties
+     * file. We don't look for nested projects within a project.
+     */
+    private static void scanProjects(File root, final List<File> projects) throws IOException {
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (Files.exists(dir.resolve("Versions.properties")) || Files.exists(dir.resolve("codenameone_settings.properties"))) {
+                    projects.add(dir.toFile());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (dir.getFileName() != null && dir.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
-    private void updateSkins() throws Exception {
-        URL skinXML = new URL(SKIN_XML_URL);
-        HttpURLConnection con = (HttpURLConnection) skinXML.openConnection();
-        con.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; U; Android 2.2; en-us; Nexus One Build/FRF91) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 Mobile Safari/533.1");
+    private void updateSkins(Properties updateStatus) throws Exception {
+        long start = System.nanoTime();
         Preferences pref = Preferences.userNodeForPackage(JavaSEPort.class);
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        Document d = null;
-        try (InputStream is = con.getInputStream()) {
-            d = db.parse(is);
-        }
-        NodeList skins = d.getElementsByTagName("Skin");
-        for (int i = 0; i < skins.getLength(); i++) {
-            Node skin = skins.item(i);
-            NamedNodeMap attr = skin.getAttributes();
-            String url = attr.getNamedItem("url").getNodeValue();
-            if (!new File(SKIN_DIR, url).exists()) {
-                continue;
-            }
-
-            int ver = 0;
-            Node n = attr.getNamedItem("version");
-            if (n != null) {
-                ver = Integer.parseInt(n.getNodeValue());
-            }
-
-            int currentVersion = Integer.parseInt(pref.get(url, "0"));
-            if (currentVersion != ver) {
-                HttpURLConnection skinDownload = (HttpURLConnection) new URL(SKIN_BASE_URL + url).openConnection();
-                skinDownload.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; U; Android 2.2; en-us; Nexus One Build/FRF91) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 Mobile Safari/533.1");
-                int length = skinDownload.getContentLength();
-                System.out.println("Downloading skin " + url + " of " + length + " bytes");
-                byte[] data = new byte[length];
-                try (DataInputStream dis = new DataInputStream(skinDownload.getInputStream())) {
-                    dis.readFully(data);
+
+        // we only need two attributes of every skin so we stream the manifest
+        // instead of building a DOM. It's read within the retried request so a
+        // server error or a connection that drops midway is retried too
+        final Map<String, Integer> outdated = new LinkedHashMap<>();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        URLConnection con = Downloader.withRetries(SKIN_XML_URL, () -> {
+            URLConnection c = Downloader.open(SKIN_XML_URL);
+            Downloader.setConditionalHeaders(c, updateStatus, "Skins");
+            if (Downloader.getResponseCode(c) == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Downloader.release(c);
+                return c;
+            }
+            outdated.clear();
+            try (InputStream is = c.getInputStream()) {
+                XMLStreamReader reader = factory.createXMLStreamReader(is);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT || !"Skin".equals(reader.getLocalName())) {
+                            continue;
+                        }
+                        String url = reader.getAttributeValue(null, "url");
+                        if (url == null || !getSkinFile(url).exists()) {
+                            continue;
+                        }
+
+                        int ver = 0;
+                        String version = reader.getAttributeValue(null, "version");
+                        if (version != null) {
+                            ver = Integer.parseInt(version);
+                        }
+
+                        int currentVersion = Integer.parseInt(pref.get(url, "0"));
+                        if (currentVersion != ver) {
+                            outdated.put(url, ver);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException err) {
+                throw new IOException("Malformed " + SKIN_XML_URL, err);
+            }
+            return c;
+        });
+        boolean unchanged = Downloader.getResponseCode(con) == HttpURLConnection.HTTP_NOT_MODIFIED;
+        completed(UpdateEvent.Phase.MANIFEST, "Skins.xml", Math.max(0, con.getContentLengthLong()), start, unchanged);
+        if (unchanged) {
+            System.out.println("Skins are up to date");
+            return;
+        }
+
+        Exception error = null;
+        if (!outdated.isEmpty()) {
+            ExecutorService downloads = Executors.newFixedThreadPool(Math.min(outdated.size(), DOWNLOAD_THREADS));
+            try {
+                Map<String, Future<?>> results = new LinkedHashMap<>();
+                for (final String url : outdated.keySet()) {
+                    results.put(url, downloads.submit(() -> {
+                        System.out.println("Downloading skin " + url);
+                        File skinFile = getSkinFile(url);
+                        Downloader.moveIntoPlace(Downloader.download(SKIN_BASE_URL + url, skinFile, null, EVENTS), skinFile);
+                        return null;
+                    }));
                 }
 
-                try (FileOutputStream dos = new FileOutputStream(new File(SKIN_DIR, url))) {
-                    dos.write(data);
+                // the preferences are written once for all of the skins that arrived
+                for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                    try {
+                        result.getValue().get();
+                        pref.putInt(result.getKey(), outdated.get(result.getKey()));
+                    } catch (ExecutionException err) {
+                        if (error == null) {
+                            error = err.getCause() instanceof Exception ? (Exception) err.getCause() : err;
+                        }
+                    }
                 }
-                pref.putInt(url, ver);
+                pref.flush();
+            } finally {
+                downloads.shutdownNow();
             }
         }
+
+        if (error != null) {
+            throw error;
+        }
+        Downloader.storeValidators(con, updateStatus, "Skins");
     }
 
     /**
+     * Returns the local file of a skin listed in Skins.xml, the URLs are
+     * relative to the skin base URL and start with a slash
+     */
+    private File getSkinFile(String url) throws IOException {
+        return Artifact.resolve(SKIN_DIR, url.startsWith("/") ? url.substring(1) : url);
+    }
+
+    /**
+     * Usage: {@code UpdateCodenameOne projectPath [force]} or in batch mode
+     * {@code UpdateCodenameOne -batch [force] [-scan directory]... [projectPath]...}
+     * which updates all the given projects and the projects found under the
+     * scanned directories in a single run. {@code UpdateCodenameOne -daemon}
+     * starts a resident updater that single project updates are delegated to,
+     * {@code UpdateCodenameOne -daemon stop} stops it.
+     * {@code UpdateCodenameOne -mirror directory} copies the current release
+     * into a directory that clients can update from, see {@link Mirror}.
+     * {@code UpdateCodenameOne -prefetch} downloads the next release in the
+     * background so the next update doesn't wait for the network.
+     * {@code UpdateCodenameOne -patch old new patch} creates a patch from one
+     * version of an artifact to the next for the server, see {@link DeltaPatch}.
+     *
      * @param args the command line arguments
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-daemon")) {
+            if (args.length > 1 && args[1].equals("stop")) {
+                System.out.println(UpdateDaemon.stop() ? "Update daemon stopped" : "Update daemon isn't running");
+            } else {
+                UpdateDaemon.run(new UpdateCodenameOne());
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-prefetch")) {
+            new UpdateCodenameOne().prefetch();
+            return;
+        }
+        if (args.length > 3 && args[0].equals("-patch")) {
+            File oldFile = new File(args[1]);
+            File patch = new File(args[3]);
+            String oldHash = ArtifactStore.sha256(oldFile);
+            String newHash = DeltaPatch.create(oldFile, new File(args[2]), patch);
+            System.out.println("Created " + patch + ", publish it as <url>." + oldHash + "." + newHash + ".patch and list "
+                    + oldHash + " in <key>.patches");
+            return;
+        }
+        if (args.length > 1 && args[0].equals("-mirror")) {
+            Mirror.run(new File(args[1]));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-batch")) {
+            boolean force = false;
+            List<File> projects = new ArrayList<>();
+            for (int iter = 1; iter < args.length; iter++) {
+                if (args[iter].equalsIgnoreCase("force")) {
+                    force = true;
+                } else if (args[iter].equals("-scan") && iter + 1 < args.length) {
+                    iter++;
+                    scanProjects(new File(args[iter]), projects);
+                } else {
+                    projects.add(new File(args[iter]));
+                }
+            }
+            if (projects.isEmpty()) {
+                System.out.println("No projects found");
+                return;
+            }
+            new UpdateCodenameOne().runUpdate(projects, force);
+            return;
+        }
+
         boolean force = false;
         if (args.length > 1) {
             force = args[1].equalsIgnoreCase("force");
         }
 
+        if (UpdateDaemon.request(new File(args[0]), force)) {
+            return;
+        }
         new UpdateCodenameOne().runUpdate(new File(args[0]), force);
     }
     
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A resident updater process that build scripts can ask to update a project
+ * over a local socket. The daemon keeps the update status in memory and checks
+ * the server in the background so a build doesn't pay for starting the updater
+ * or for the network check.
+ * <p>
+ * The daemon listens on the loopback interface and publishes its port and a
+ * random token in ~/.codenameone/UpdateDaemon.properties which only the user
+ * can read. A request is a single line: the token, the command, the force flag
+ * and the project path separated by tabs. The response is a sequence of lines
+ * starting with {@code "> "} followed by {@code OK} or {@code ERROR message}.
+ * While a sync runs the daemon writes a {@code ">"} line every few seconds so
+ * the client's read timeout only expires if the daemon is stuck, not because
+ * the update takes long.
+ */
+public class UpdateDaemon {
+
+    private static final int CONNECT_TIMEOUT = 200;
+
+    /**
+     * How long a client waits for the next line of the response before it
+     * gives up on the daemon and updates the project itself, can be overridden
+     * in seconds with the cn1.updater.daemonTimeout property
+     */
+    private static final int READ_TIMEOUT = Integer.getInteger("cn1.updater.daemonTimeout", 30) * 1000;
+
+    /**
+     * How often the daemon tells a waiting client that the sync still runs
+     */
+    private static final long KEEPALIVE_INTERVAL = Math.max(100, READ_TIMEOUT / 3);
+
+    /**
+     * How often the daemon checks the server, can be overridden in minutes with
+     * the cn1.updater.refreshMinutes property
+     */
+    private static final long REFRESH_INTERVAL = Integer.getInteger("cn1.updater.refreshMinutes", 60) * 60000L;
+
+    private final UpdateCodenameOne updater;
+    private final String token;
+
+    // the JVM can only hold one lock on the lock file so all of the work is
+    // serialized on a single thread
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private Properties status;
+    private Map<String, String> hashes;
+    private long statusModified;
+    private long statusLength;
+    private volatile boolean running = true;
+
+    private UpdateDaemon(UpdateCodenameOne updater, String token) {
+        this.updater = updater;
+        this.token = token;
+    }
+
+    /**
+     * The file in which a running daemon publishes its port and token
+     */
+    public static File getDaemonFile() {
+        return new File(System.getProperty("user.home") + File.separator + ".codenameone" + File.separator + "UpdateDaemon.properties");
+    }
+
+    /**
+     * Runs the daemon until it's stopped
+     *
+     * @param updater the updater performing the work
+     */
+    public static void run(UpdateCodenameOne updater) throws IOException {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        UpdateDaemon daemon = new UpdateDaemon(updater, ArtifactStore.toHex(random));
+        try (ServerSocket server = new ServerSocket(Integer.getInteger("cn1.updater.daemonPort", 0), 50, InetAddress.getLoopbackAddress())) {
+            daemon.serve(server);
+        }
+    }
+
+    private void serve(ServerSocket server) throws IOException {
+        final File daemonFile = getDaemonFile();
+        daemonFile.getParentFile().mkdirs();
+        Properties p = new Properties();
+        p.setProperty("port", "" + server.getLocalPort());
+        p.setProperty("token", token);
+        try (OutputStream os = new FileOutputStream(daemonFile)) {
+            daemonFile.setReadable(false, false);
+            daemonFile.setReadable(true, true);
+            p.store(os, "");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> daemonFile.delete()));
+        System.out.println("Update daemon listening on port " + server.getLocalPort());
+
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+        try {
+            while (running) {
+                final Socket socket = server.accept();
+                connections.submit(() -> handle(socket));
+            }
+        } finally {
+            scheduler.shutdownNow();
+            connections.shutdownNow();
+            worker.shutdownNow();
+            daemonFile.delete();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            String[] request = line == null ? new String[0] : line.split("\t");
+            if (request.length < 2 || !token.equals(request[0])) {
+                out.println("ERROR Invalid request");
+                return;
+            }
+            switch (request[1]) {
+                case "sync":
+                    if (request.length < 4) {
+                        out.println("ERROR Invalid request");
+                        return;
+                    }
+                    final File project = new File(request[3]);
+                    final boolean force = request[2].equals("force");
+                    try {
+                        Future<List<String>> result = worker.submit(() -> sync(project, force));
+                        List<String> updated;
+                        while (true) {
+                            try {
+                                updated = result.get(KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+                                break;
+                            } catch (TimeoutException err) {
+                                out.println(">");
+                                out.flush();
+                            }
+                        }
+                        for (String file : updated) {
+                            out.println("> Updated the file: " + new File(project, file).getAbsolutePath());
+                        }
+                        out.println(updated.isEmpty() ? "> Project files are up to date" : "> Updated project files");
+                        out.println("OK");
+                    } catch (ExecutionException err) {
+                        out.println("ERROR " + err.getCause());
+                    }
+                    break;
+                case "stop":
+                    running = false;
+                    out.println("OK");
+                    out.flush();
+                    // the accept loop is blocked so we exit from here
+                    System.exit(0);
+                    break;
+                default:
+                    out.println("ERROR Unknown command " + request[1]);
+            }
+        } catch (IOException | InterruptedException err) {
+            System.out.println("Failed to handle request: " + err);
+        }
+    }
+
+    private List<String> sync(File project, boolean force) throws Exception {
+        try (UpdateLock lock = updater.openLock()) {
+            // prepare only reads the status to decide whether it needs the
+            // exclusive lock
+            if (!updater.prepare(lock, force, getStatus())) {
+                throw new IOException("Timed out waiting for the update lock");
+            }
+            // prepare might have updated the status so we check it again, the
+            // shared lock keeps it stable from here on
+            Properties current = getStatus();
+            if (hashes == null) {
+                hashes = updater.getProjectHashes(current);
+            }
+            List<String> updated = updater.syncProject(project, current, hashes);
+            if (updater.hasDamagedEntries()) {
+                // the damaged store entries are downloaded again under the
+                // exclusive lock and then deployed to the project
+                if (!updater.prepare(lock, false, getStatus())) {
+                    throw new IOException("Timed out waiting for the update lock");
+                }
+                current = getStatus();
+                if (hashes == null) {
+                    hashes = updater.getProjectHashes(current);
+                }
+                updated = updater.syncProject(project, current, hashes);
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Returns the update status, we only read it again if another process or
+     * the background refresh changed it. This never writes, the hashes are
+     * computed once the shared lock is held.
+     */
+    private Properties getStatus() throws Exception {
+        File statusFile = updater.getStatusFile();
+        if (status == null || statusFile.lastModified() != statusModified || statusFile.length() != statusLength) {
+            statusModified = statusFile.lastModified();
+            statusLength = statusFile.length();
+            status = updater.loadSystemUpdateStatus();
+            hashes = null;
+        }
+        return status;
+    }
+
+    /**
+     * Prefetches the next release on the scheduler thread so project updates
+     * aren't held up by the download, the worker then activates it
+     */
+    private void refresh() {
+        try {
+            updater.prefetch();
+        } catch (Exception err) {
+            System.out.println("Prefetch failed: " + err);
+        }
+        worker.submit(this::activate);
+    }
+
+    /**
+     * Activates the prefetched release or checks the server if the prefetch
+     * failed. If another process is updating we skip this round.
+     */
+    private void activate() {
+        try (UpdateLock lock = updater.openLock()) {
+            if (lock.acquire(false, 0)) {
+                updater.updateSystemLibraries(false, REFRESH_INTERVAL);
+            }
+        } catch (Exception err) {
+            System.out.println("Background update failed: " + err);
+        }
+    }
+
+    /**
+     * Asks a running daemon to update the project
+     *
+     * @param project the project root
+     * @param force true to check for updates even if we checked recently
+     * @return true if the daemon updated the project, false if there is no
+     * daemon or it failed in which case the caller should update the project
+     * itself
+     */
+    public static boolean request(File project, boolean force) {
+        String response = send("sync\t" + (force ? "force" : "normal") + "\t" + project.getAbsolutePath());
+        return "OK".equals(response);
+    }
+
+    /**
+     * Stops the running daemon
+     *
+     * @return true if a daemon was stopped
+     */
+    public static boolean stop() {
+        return "OK".equals(send("stop"));
+    }
+
+    private static String send(String request) {
+        File daemonFile = getDaemonFile();
+        if (!daemonFile.exists()) {
+            return null;
+        }
+        try {
+            Properties p = new Properties();
+            try (InputStream is = new FileInputStream(daemonFile)) {
+                p.load(is);
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(p.getProperty("port"))), CONNECT_TIMEOUT);
+                // a daemon that is stuck mustn't hang the build, one that is busy
+                // with a long update keeps the connection alive
+                socket.setSoTimeout(READ_TIMEOUT);
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                out.write(p.getProperty("token") + "\t" + request + "\n");
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals(">")) {
+                        // the daemon is still working
+                        continue;
+                    }
+                    if (line.startsWith("> ")) {
+                        System.out.println(line.substring(2));
+                    } else {
+                        if (line.startsWith("ERROR")) {
+                            System.out.println("Update daemon failed: " + line.substring(5).trim());
+                        }
+                        return line;
+                    }
+                }
+            }
+        } catch (SocketTimeoutException err) {
+            System.out.println("Update daemon didn't respond, updating without it");
+        } catch (IOException | RuntimeException err) {
+            // no daemon or a stale daemon file
+        }
+        return null;
+    }
+}
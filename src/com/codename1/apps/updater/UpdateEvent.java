@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+/**
+ * A step of the update that completed for a single file, see
+ * {@link UpdateListener}
+ */
+public class UpdateEvent {
+
+    /**
+     * The steps of an update
+     */
+    public enum Phase {
+        /**
+         * Fetching the update status or the skins manifest
+         */
+        MANIFEST,
+        /**
+         * Downloading an artifact, a patch or a skin
+         */
+        DOWNLOAD,
+        /**
+         * Applying a patch to the previous version of an artifact
+         */
+        PATCH,
+        /**
+         * Hashing a file we already have to verify it
+         */
+        VERIFY,
+        /**
+         * Extracting an archive such as CEF
+         */
+        EXTRACT,
+        /**
+         * Placing an artifact within a project
+         */
+        DEPLOY
+    }
+
+    private final Phase phase;
+    private final String name;
+    private final long bytes;
+    private final long nanos;
+    private final boolean cached;
+
+    /**
+     * @param phase the step that completed
+     * @param name the file the step applies to
+     * @param bytes the number of bytes transferred or processed
+     * @param nanos the time the step took
+     * @param cached true if the step was skipped since the local copy is current
+     */
+    public UpdateEvent(Phase phase, String name, long bytes, long nanos, boolean cached) {
+        this.phase = phase;
+        this.name = name;
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.cached = cached;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * Returns the throughput of the step or 0 if it took no measurable time
+     */
+    public long getBytesPerSecond() {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (long) (bytes * 1000000000.0 / nanos);
+    }
+
+    @Override
+    public String toString() {
+        return phase + " " + name + " " + bytes + " bytes in " + (nanos / 1000000) + "ms" + (cached ? " (cached)" : "");
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+/**
+ * Receives the progress of an update, e.g. to show a progress bar in an IDE.
+ * Downloads run in parallel so the methods can be invoked from several threads
+ * at once.
+ *
+ * @see UpdateCodenameOne#addListener(UpdateListener)
+ */
+public interface UpdateListener {
+
+    /**
+     * Invoked as the bytes of a download arrive
+     *
+     * @param name the name of the file being downloaded
+     * @param bytes the number of bytes of the file we have so far
+     * @param total the size of the file or -1 if the server didn't say
+     */
+    void progress(String name, long bytes, long total);
+
+    /**
+     * Invoked when a step of the update completes for a file
+     */
+    void completed(UpdateEvent event);
+}
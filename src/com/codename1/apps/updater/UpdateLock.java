@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * An operating system level lock between updater processes. Changing the
+ * system libraries requires the exclusive lock while updating projects only
+ * requires the shared lock, so projects can be updated in parallel by several
+ * processes. The lock is released by the OS if the process dies so a crashed
+ * update never leaves a stale lock behind.
+ * <p>
+ * The Java file locks are held on behalf of the whole JVM, so a single process
+ * must not use more than one instance concurrently.
+ */
+public class UpdateLock implements Closeable {
+
+    private static final long POLL_INTERVAL = 100;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private FileLock lock;
+
+    /**
+     * @param lockFile the file we lock, it's created if it doesn't exist and is
+     * never deleted
+     */
+    public UpdateLock(File lockFile) throws IOException {
+        lockFile.getParentFile().mkdirs();
+        file = new RandomAccessFile(lockFile, "rw");
+        channel = file.getChannel();
+    }
+
+    /**
+     * Acquires the lock releasing any lock we currently hold first, so this can
+     * also be used to switch between the exclusive and shared modes
+     *
+     * @param shared true for a shared lock, false for an exclusive lock
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the lock was acquired, false if we timed out
+     */
+    public boolean acquire(boolean shared, long timeout) throws IOException {
+        release();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            lock = channel.tryLock(0, Long.MAX_VALUE, shared);
+            if (lock != null) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the update lock");
+            }
+        }
+    }
+
+    /**
+     * Releases the lock if we hold it
+     */
+    public void release() throws IOException {
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            release();
+        } finally {
+            file.close();
+        }
+    }
+}
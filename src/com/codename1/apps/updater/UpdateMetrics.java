@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the events of an update run and writes them as a JSON summary so
+ * update times can be compared across machines and mirrors. Enabled with
+ * {@code -Dcn1.updater.metrics=file.json}, the summary looks like:
+ * <pre>
+ * {"durationMs":1520,"cacheHits":6,"cacheMisses":2,
+ *  "phases":{"DOWNLOAD":{"count":3,"cached":1,"bytes":52428800,"ms":1204}, ...},
+ *  "events":[{"phase":"DOWNLOAD","name":"JavaSE.jar","bytes":52428800,"ms":1204,
+ *             "bytesPerSecond":43545600,"cached":false}, ...]}
+ * </pre>
+ * Phase times are the sum of the individual events so parallel downloads can
+ * add up to more than the duration of the run.
+ */
+public class UpdateMetrics implements UpdateListener {
+
+    private final long start = System.nanoTime();
+    private final List<UpdateEvent> events = new ArrayList<>();
+
+    @Override
+    public void progress(String name, long bytes, long total) {
+    }
+
+    @Override
+    public synchronized void completed(UpdateEvent event) {
+        events.add(event);
+    }
+
+    public synchronized List<UpdateEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /**
+     * Returns the JSON summary of the events so far
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        int hits = 0;
+        for (UpdateEvent event : events) {
+            if (event.isCached()) {
+                hits++;
+            }
+        }
+        json.append("{\"durationMs\":").append((System.nanoTime() - start) / 1000000)
+                .append(",\"cacheHits\":").append(hits)
+                .append(",\"cacheMisses\":").append(events.size() - hits)
+                .append(",\"phases\":{");
+        boolean first = true;
+        for (UpdateEvent.Phase phase : UpdateEvent.Phase.values()) {
+            int count = 0;
+            int cached = 0;
+            long bytes = 0;
+            long nanos = 0;
+            for (UpdateEvent event : events) {
+                if (event.getPhase() == phase) {
+                    count++;
+                    if (event.isCached()) {
+                        cached++;
+                    }
+                    bytes += event.getBytes();
+                    nanos += event.getNanos();
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(phase).append("\":{\"count\":").append(count)
+                    .append(",\"cached\":").append(cached)
+                    .append(",\"bytes\":").append(bytes)
+                    .append(",\"ms\":").append(nanos / 1000000).append('}');
+        }
+        json.append("},\"events\":[");
+        for (int iter = 0; iter < events.size(); iter++) {
+            UpdateEvent event = events.get(iter);
+            if (iter > 0) {
+                json.append(',');
+            }
+            json.append("{\"phase\":\"").append(event.getPhase())
+                    .append("\",\"name\":");
+            appendString(json, event.getName());
+            json.append(",\"bytes\":").append(event.getBytes())
+                    .append(",\"ms\":").append(event.getNanos() / 1000000)
+                    .append(",\"bytesPerSecond\":").append(event.getBytesPerSecond())
+                    .append(",\"cached\":").append(event.isCached()).append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Writes the JSON summary to the given file
+     */
+    public void write(File file) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write(toJson());
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int iter = 0; iter < value.length(); iter++) {
+            char c = value.charAt(iter);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
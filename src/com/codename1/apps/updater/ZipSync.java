@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Incrementally extracts a zip into a directory. We keep an index of the CRC
+ * and size of every entry we extracted within the directory, so when a new
+ * version of the zip arrives only the entries that changed are written and
+ * only the entries that were removed are deleted. Entries are read with random
+ * access through {@link ZipFile} and inflated on a pool of threads.
+ */
+public class ZipSync {
+
+    /**
+     * The index of extracted entries within the destination directory
+     */
+    public static final String INDEX_FILE = ".zipsync.properties";
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    /**
+     * The number of threads inflating entries, can be overridden with the
+     * cn1.updater.extractThreads property
+     */
+    private static final int EXTRACT_THREADS = Math.max(1, Integer.getInteger("cn1.updater.extractThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    /**
+     * Brings the destination directory in sync with the zip file using the
+     * default number of threads
+     *
+     * @param zip the zip file
+     * @param destination the directory into which we extract
+     * @return the number of entries that were written or deleted
+     */
+    public static int sync(File zip, File destination) throws IOException {
+        return sync(zip, destination, EXTRACT_THREADS);
+    }
+
+    /**
+     * Brings the destination directory in sync with the zip file, entries are
+     * inflated concurrently by the given number of threads
+     *
+     * @param zip the zip file
+     * @param destination the directory into which we extract
+     * @param threads the number of threads inflating entries, 1 extracts on the
+     * calling thread
+     * @return the number of entries that were written or deleted
+     */
+    public static int sync(File zip, File destination, int threads) throws IOException {
+        destination.mkdirs();
+        File indexFile = new File(destination, INDEX_FILE);
+        Properties index = new Properties();
+        boolean hasIndex = indexFile.exists();
+        if (hasIndex) {
+            try (InputStream is = new FileInputStream(indexFile)) {
+                index.load(is);
+            }
+        }
+
+        int changes = 0;
+        Properties newIndex = new Properties();
+        Set<String> directories = new HashSet<>();
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            Set<File> parents = new HashSet<>();
+            Enumeration<? extends ZipEntry> e = zipFile.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                File file = UpdateCodenameOne.newFile(destination, entry);
+                addParents(entry.getName(), directories);
+                if (entry.isDirectory()) {
+                    parents.add(file);
+                    continue;
+                }
+                newIndex.setProperty(entry.getName(), entry.getCrc() + "," + entry.getSize());
+                parents.add(file.getParentFile());
+                entries.add(entry);
+                files.add(file);
+            }
+
+            // creating the directories up front means the workers never race on them
+            for (File dir : parents) {
+                dir.mkdirs();
+            }
+            changes += extract(zipFile, entries, files, index, hasIndex, threads);
+        }
+
+        if (hasIndex) {
+            for (String name : index.stringPropertyNames()) {
+                if (!newIndex.containsKey(name)) {
+                    File removed = new File(destination, name);
+                    if (removed.delete()) {
+                        changes++;
+                    }
+                }
+            }
+        } else {
+            // we don't know which files came from an earlier version of the zip,
+            // anything that isn't in the zip goes
+            changes += deleteUnknown(destination, destination, newIndex, directories);
+        }
+
+        File tempIndex = new File(destination, INDEX_FILE + ".tmp");
+        try (OutputStream os = new FileOutputStream(tempIndex)) {
+            newIndex.store(os, zip.getName());
+        }
+        Downloader.moveIntoPlace(tempIndex, indexFile);
+        return changes;
+    }
+
+    private static int extract(final ZipFile zipFile, List<ZipEntry> entries, List<File> files,
+            final Properties index, final boolean hasIndex, int threads) throws IOException {
+        int written = 0;
+        if (threads <= 1) {
+            for (int iter = 0; iter < entries.size(); iter++) {
+                if (extractEntry(zipFile, entries.get(iter), files.get(iter), index, hasIndex)) {
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(entries.size());
+            for (int iter = 0; iter < entries.size(); iter++) {
+                final ZipEntry entry = entries.get(iter);
+                final File file = files.get(iter);
+                results.add(workers.submit(() -> extractEntry(zipFile, entry, file, index, hasIndex)));
+            }
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    written++;
+                }
+            }
+            return written;
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting " + zipFile.getName());
+        } catch (ExecutionException err) {
+            if (err.getCause() instanceof IOException) {
+                throw (IOException) err.getCause();
+            }
+            throw new IOException(err.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the entry unless the file on disk already matches it
+     *
+     * @return true if the entry was written
+     */
+    private static boolean extractEntry(ZipFile zipFile, ZipEntry entry, File file, Properties index,
+            boolean hasIndex) throws IOException {
+        byte[] buffer = BUFFER.get();
+        if (isUnchanged(file, entry, index.getProperty(entry.getName()), hasIndex, buffer)) {
+            return false;
+        }
+        try (InputStream is = zipFile.getInputStream(entry); OutputStream os = new FileOutputStream(file)) {
+            int len;
+            while ((len = is.read(buffer)) > -1) {
+                os.write(buffer, 0, len);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUnchanged(File file, ZipEntry entry, String indexed, boolean hasIndex,
+            byte[] buffer) throws IOException {
+        if (!file.isFile() || file.length() != entry.getSize()) {
+            return false;
+        }
+        if (hasIndex) {
+            return (entry.getCrc() + "," + entry.getSize()).equals(indexed);
+        }
+
+        // without an index we compare the CRC of the file on disk, reading is
+        // still much cheaper than writing
+        CRC32 crc = new CRC32();
+        try (InputStream is = new FileInputStream(file)) {
+            int len;
+            while ((len = is.read(buffer)) > -1) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue() == entry.getCrc();
+    }
+
+    /**
+     * Adds the directories leading to the entry, including the entry itself if
+     * it's a directory
+     */
+    private static void addParents(String name, Set<String> directories) {
+        for (int slash = name.indexOf('/'); slash > -1; slash = name.indexOf('/', slash + 1)) {
+            directories.add(name.substring(0, slash));
+        }
+    }
+
+    private static int deleteUnknown(File root, File dir, Properties known, Set<String> directories) {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        String rootPath = root.getAbsolutePath();
+        for (File file : files) {
+            String name = file.getAbsolutePath().substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+            if (file.isDirectory()) {
+                deleted += deleteUnknown(root, file, known, directories);
+                if (!directories.contains(name)) {
+                    file.delete();
+                }
+            } else if (!known.containsKey(name) && !name.equals(INDEX_FILE)) {
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
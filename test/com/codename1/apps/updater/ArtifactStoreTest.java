@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Adding artifacts to the store, deploying them as hard links and dropping the
+ * entries we no longer need
+ */
+public class ArtifactStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ArtifactStore store;
+
+    @Before
+    public void createStore() {
+        store = new ArtifactStore(new File(temp.getRoot(), "store"));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(temp.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a file with the given content and returns its hash
+     */
+    private String add(String name, String content) throws IOException {
+        File file = write(name, content);
+        String hash = ArtifactStore.sha256(file);
+        store.add(file, hash);
+        return hash;
+    }
+
+    @Test
+    public void addsAnEntryUnderItsHash() throws IOException {
+        File file = write("JavaSE.jar", "v1");
+        String hash = ArtifactStore.sha256(file);
+        assertFalse(store.contains(hash));
+        store.add(file, hash);
+        assertTrue(store.contains(hash));
+        assertEquals("v1", read(store.get(hash)));
+        assertTrue("The added file is left in place", file.exists());
+
+        // adding the same hash again keeps the existing entry
+        store.add(write("other", "v1"), hash);
+        assertTrue(Files.isSameFile(file.toPath(), store.get(hash).toPath()));
+        assertEquals(Collections.singletonList(hash), Arrays.asList(store.getRoot().list()));
+    }
+
+    @Test
+    public void deploysAHardLink() throws IOException {
+        String hash = add("JavaSE.jar", "v1");
+        // deploy creates the directories it needs
+        File nested = new File(temp.getRoot(), "project/lib/JavaSE.jar");
+        store.deploy(hash, nested);
+        assertTrue(Files.isSameFile(store.get(hash).toPath(), nested.toPath()));
+
+        // an existing file is replaced
+        File existing = write("JavaSE.jar.project", "old");
+        store.deploy(hash, existing);
+        assertEquals("v1", read(existing));
+        assertTrue(Files.isSameFile(store.get(hash).toPath(), existing.toPath()));
+
+        // deploying a newer version replaces the link without touching the old entry
+        String newHash = add("JavaSE.jar.v2", "v2");
+        store.deploy(newHash, existing);
+        assertEquals("v2", read(existing));
+        assertEquals("v1", read(store.get(hash)));
+        assertEquals(0, existing.getParentFile().list((dir, name) -> name.endsWith(".tmp")).length);
+    }
+
+    @Test
+    public void retainDropsOnlyUnneededEntries() throws IOException {
+        String kept = add("a", "kept");
+        String dropped = add("b", "dropped");
+        File deployed = new File(temp.getRoot(), "deployed");
+        store.deploy(dropped, deployed);
+        // the temporary link of an add running in another process
+        File pending = new File(store.getRoot(), dropped + ".1234.tmp");
+        Files.write(pending.toPath(), new byte[1]);
+
+        store.retain(Collections.singleton(kept));
+        assertTrue(store.contains(kept));
+        assertFalse(store.contains(dropped));
+        assertTrue(pending.exists());
+        assertEquals("Deployed links survive their entry", "dropped", read(deployed));
+    }
+
+    @Test
+    public void rejectsInvalidHashes() {
+        assertFalse(store.contains("../UpdateStatus.properties"));
+        assertFalse(store.contains(null));
+        try {
+            store.get("../../.bashrc");
+            fail("Resolved a path outside of the store");
+        } catch (IllegalArgumentException err) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Parsing the artifacts the server publishes
+ */
+public class ArtifactTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static Properties manifest(String key, String suffix, String value) {
+        Properties p = new Properties();
+        p.setProperty("artifacts", key);
+        p.setProperty(key + suffix, value);
+        return p;
+    }
+
+    @Test
+    public void resolvesPathsWithinTheDirectory() throws Exception {
+        File dir = temp.getRoot();
+        assertEquals(new File(new File(dir, "lib"), "CodenameOne.jar").getCanonicalPath(),
+                Artifact.resolve(dir, "lib/CodenameOne.jar").getCanonicalPath());
+    }
+
+    @Test
+    public void rejectsPathsOutsideOfTheDirectory() {
+        for (String path : new String[]{"", " ", ".", "./", "lib/..", "../.bashrc", "lib/../../.bashrc", "/etc/passwd",
+            "\\\\server\\share", "C:\\Windows"}) {
+            try {
+                Artifact.resolve(temp.getRoot(), path);
+                fail("Accepted " + path);
+            } catch (IOException err) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsManifestPaths() {
+        String[][] invalid = {{".path", "../../.bashrc"}, {".project", "/tmp/x.jar"}, {".extract", "."}, {".extract", ""}};
+        for (String[] entry : invalid) {
+            try {
+                Artifact.parse(manifest("cef-linux", entry[0], entry[1]));
+                fail("Accepted " + entry[0] + "=" + entry[1]);
+            } catch (IOException err) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void parsesManifest() throws Exception {
+        Properties p = manifest("cef-linux", ".extract", "cef");
+        p.setProperty("cef-linux.os", "Linux");
+        p.setProperty("cef-linux.desktop", "true");
+        List<Artifact> artifacts = Artifact.parse(p);
+        assertEquals(1, artifacts.size());
+        Artifact cef = artifacts.get(0);
+        assertEquals("cef-linux", cef.getPath());
+        assertEquals("cef", cef.getExtract());
+        assertEquals(true, cef.isNeeded(UpdateCodenameOne.OSType.Linux, false));
+        assertEquals(false, cef.isNeeded(UpdateCodenameOne.OSType.Linux, true));
+        assertEquals(false, cef.isNeeded(UpdateCodenameOne.OSType.MacOS, false));
+        assertNull(Artifact.parse(new Properties()));
+    }
+
+    @Test
+    public void ignoresUnknownPlatforms() throws Exception {
+        Properties p = manifest("cef-fuchsia", ".os", "Fuchsia");
+        p.setProperty("artifacts", "cef-fuchsia,cef-both");
+        p.setProperty("cef-both.os", "Fuchsia, Linux");
+        List<Artifact> artifacts = Artifact.parse(p);
+        for (UpdateCodenameOne.OSType os : UpdateCodenameOne.OSType.values()) {
+            assertEquals(false, artifacts.get(0).isNeeded(os, false));
+        }
+        assertEquals(true, artifacts.get(1).isNeeded(UpdateCodenameOne.OSType.Linux, false));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Creating and applying binary patches
+ */
+public class DeltaPatchTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(temp.getRoot(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * Creates a patch from old to new, applies it and checks the result
+     *
+     * @return the size of the patch
+     */
+    private long roundTrip(byte[] oldData, byte[] newData) throws IOException {
+        File oldFile = write("old", oldData);
+        File newFile = write("new", newData);
+        File patch = new File(temp.getRoot(), "patch");
+        File output = new File(temp.getRoot(), "output");
+        String hash = DeltaPatch.create(oldFile, newFile, patch);
+        assertEquals(ArtifactStore.sha256(newFile), hash);
+        assertEquals(hash, DeltaPatch.apply(oldFile, patch, output));
+        assertArrayEquals(newData, Files.readAllBytes(output.toPath()));
+        return patch.length();
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void similarFilesProduceASmallPatch() throws IOException {
+        byte[] oldData = random(200000, 1);
+        byte[] newData = new byte[oldData.length + 1000];
+        // a changed prefix, a deleted and an inserted range
+        System.arraycopy(random(500, 2), 0, newData, 0, 500);
+        System.arraycopy(oldData, 500, newData, 500, 50000);
+        System.arraycopy(oldData, 60000, newData, 50500, oldData.length - 60000);
+        System.arraycopy(random(newData.length - (50500 + oldData.length - 60000), 3), 0,
+                newData, 50500 + oldData.length - 60000, newData.length - (50500 + oldData.length - 60000));
+        long size = roundTrip(oldData, newData);
+        assertTrue("Patch is " + size + " bytes", size < 20000);
+    }
+
+    @Test
+    public void identicalFiles() throws IOException {
+        byte[] data = random(100000, 4);
+        assertTrue(roundTrip(data, data.clone()) < 100);
+    }
+
+    @Test
+    public void unrelatedAndEmptyFiles() throws IOException {
+        roundTrip(random(10000, 5), random(7000, 6));
+        roundTrip(new byte[0], random(1000, 7));
+        roundTrip(random(1000, 8), new byte[0]);
+        roundTrip(random(10, 9), random(20, 10));
+        byte[] repeated = new byte[5000];
+        Arrays.fill(repeated, (byte) 7);
+        roundTrip(repeated, Arrays.copyOf(repeated, 9000));
+    }
+
+    /**
+     * Writes a patch with the given operations after the magic number
+     */
+    private File patch(int magic, Object... ops) throws IOException {
+        File patch = new File(temp.getRoot(), "bad.patch");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(patch)))) {
+            out.writeInt(magic);
+            for (Object op : ops) {
+                if (op instanceof Long) {
+                    out.writeLong((Long) op);
+                } else if (op instanceof Byte) {
+                    out.write((Byte) op);
+                } else {
+                    out.writeInt((Integer) op);
+                }
+            }
+        }
+        return patch;
+    }
+
+    private void assertRejected(File patch) throws IOException {
+        File oldFile = write("old", random(100, 11));
+        try {
+            DeltaPatch.apply(oldFile, patch, new File(temp.getRoot(), "output"));
+            fail("Applied " + Arrays.toString(Files.readAllBytes(patch.toPath())));
+        } catch (IOException err) {
+            // expected
+        }
+    }
+
+    @Test
+    public void malformedPatchesAreRejected() throws IOException {
+        assertRejected(write("garbage", random(100, 12)));
+        assertRejected(patch(0x12345678, (byte) 0));
+        // copies past the end of the old file and a negative length
+        assertRejected(patch(0x434E3150, (byte) 1, 50L, 51, (byte) 0));
+        assertRejected(patch(0x434E3150, (byte) 1, -1L, 10, (byte) 0));
+        assertRejected(patch(0x434E3150, (byte) 2, -5, (byte) 0));
+        // truncated insert, unknown operation and a missing end marker
+        assertRejected(patch(0x434E3150, (byte) 2, 10, (byte) 1));
+        assertRejected(patch(0x434E3150, (byte) 9));
+        assertRejected(patch(0x434E3150, (byte) 2, 1, (byte) 1));
+    }
+}
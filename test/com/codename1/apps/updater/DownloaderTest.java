@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Resuming interrupted downloads against a server that drops the connection
+ */
+public class DownloaderTest {
+
+    private static final int SIZE = 200000;
+    private static final int CUT = 80000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static byte[] content(long seed) {
+        byte[] b = new byte[SIZE];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Answers the first request with the headers of the whole file but only
+     * part of the body
+     */
+    private static void truncated(OutputStream out, byte[] body) throws IOException {
+        HttpStub.respond(out, "200 OK", body, 0, CUT, "Content-Length: " + SIZE, "ETag: \"v1\"");
+    }
+
+    private static void assertDownloaded(byte[] expected, File partial, MessageDigest digest) throws Exception {
+        assertArrayEquals(expected, Files.readAllBytes(partial.toPath()));
+        assertEquals(ArtifactStore.toHex(ArtifactStore.createDigest().digest(expected)), ArtifactStore.toHex(digest.digest()));
+        assertFalse(new File(partial.getPath() + ".properties").exists());
+    }
+
+    @Test
+    public void resumesTruncatedTransfer() throws Exception {
+        final byte[] body = content(1);
+        try (HttpStub stub = new HttpStub((count, request, out) -> {
+            if (count == 1) {
+                truncated(out, body);
+            } else {
+                HttpStub.respond(out, "206 Partial Content", body, CUT, SIZE - CUT, "Content-Length: " + (SIZE - CUT),
+                        "Content-Range: bytes " + CUT + "-" + (SIZE - 1) + "/" + SIZE, "ETag: \"v1\"");
+            }
+        })) {
+            MessageDigest digest = ArtifactStore.createDigest();
+            File partial = Downloader.download(stub.getUrl("/JavaSE.jar"), new File(temp.getRoot(), "JavaSE.jar"), digest);
+            assertDownloaded(body, partial, digest);
+            assertEquals(2, stub.getRequests().size());
+            assertEquals("bytes=" + CUT + "-", stub.getRequests().get(1).header("Range"));
+            assertEquals("\"v1\"", stub.getRequests().get(1).header("If-Range"));
+        }
+    }
+
+    @Test
+    public void startsOverWhenTheFileChanged() throws Exception {
+        final byte[] oldBody = content(1);
+        final byte[] newBody = content(2);
+        try (HttpStub stub = new HttpStub((count, request, out) -> {
+            if (count == 1) {
+                truncated(out, oldBody);
+            } else {
+                // If-Range no longer matches so the server sends the whole new file
+                HttpStub.respond(out, "200 OK", newBody, 0, SIZE, "Content-Length: " + SIZE, "ETag: \"v2\"");
+            }
+        })) {
+            MessageDigest digest = ArtifactStore.createDigest();
+            File partial = Downloader.download(stub.getUrl("/JavaSE.jar"), new File(temp.getRoot(), "JavaSE.jar"), digest);
+            assertDownloaded(newBody, partial, digest);
+            assertEquals(2, stub.getRequests().size());
+        }
+    }
+
+    @Test
+    public void startsOverWhenTheRangeIsNotSatisfiable() throws Exception {
+        final byte[] body = content(3);
+        try (HttpStub stub = new HttpStub((count, request, out) -> {
+            if (count == 1) {
+                truncated(out, body);
+            } else if (request.header("Range") != null) {
+                HttpStub.respond(out, "416 Range Not Satisfiable", null, 0, 0, "Content-Length: 0");
+            } else {
+                HttpStub.respond(out, "200 OK", body, 0, SIZE, "Content-Length: " + SIZE, "ETag: \"v1\"");
+            }
+        })) {
+            MessageDigest digest = ArtifactStore.createDigest();
+            File partial = Downloader.download(stub.getUrl("/JavaSE.jar"), new File(temp.getRoot(), "JavaSE.jar"), digest);
+            assertDownloaded(body, partial, digest);
+            assertEquals(3, stub.getRequests().size());
+            assertNull(stub.getRequests().get(2).header("Range"));
+        }
+    }
+
+    @Test
+    public void startsOverWhenTheRangeDoesNotContinueTheFile() throws Exception {
+        final byte[] body = content(5);
+        try (HttpStub stub = new HttpStub((count, request, out) -> {
+            if (count == 1) {
+                truncated(out, body);
+            } else if (request.header("Range") != null) {
+                // a range that starts elsewhere than the partial file ends
+                HttpStub.respond(out, "206 Partial Content", body, 1000, SIZE - 1000, "Content-Length: " + (SIZE - 1000),
+                        "Content-Range: bytes 1000-" + (SIZE - 1) + "/" + SIZE, "ETag: \"v1\"");
+            } else {
+                HttpStub.respond(out, "200 OK", body, 0, SIZE, "Content-Length: " + SIZE, "ETag: \"v1\"");
+            }
+        })) {
+            MessageDigest digest = ArtifactStore.createDigest();
+            File partial = Downloader.download(stub.getUrl("/JavaSE.jar"), new File(temp.getRoot(), "JavaSE.jar"), digest);
+            assertDownloaded(body, partial, digest);
+            assertEquals(3, stub.getRequests().size());
+            assertNull(stub.getRequests().get(2).header("Range"));
+        }
+    }
+
+    @Test
+    public void resumesOnTheNextRun() throws Exception {
+        final byte[] body = content(4);
+        final AtomicBoolean available = new AtomicBoolean();
+        File destination = new File(temp.getRoot(), "JavaSE.jar");
+        try (HttpStub stub = new HttpStub((count, request, out) -> {
+            if (!available.get()) {
+                truncated(out, body);
+            } else {
+                HttpStub.respond(out, "206 Partial Content", body, CUT, SIZE - CUT, "Content-Length: " + (SIZE - CUT),
+                        "Content-Range: bytes " + CUT + "-" + (SIZE - 1) + "/" + SIZE, "ETag: \"v1\"");
+            }
+        })) {
+            String url = stub.getUrl("/JavaSE.jar");
+            try {
+                Downloader.download(url, destination);
+                fail("The server never sends the whole file");
+            } catch (IOException err) {
+                // the partial file is kept for the next run
+            }
+            assertEquals(CUT, new File(temp.getRoot(), "JavaSE.jar.partial").length());
+
+            available.set(true);
+            int before = stub.getRequests().size();
+            MessageDigest digest = ArtifactStore.createDigest();
+            assertDownloaded(body, Downloader.download(url, destination, digest), digest);
+            assertEquals("bytes=" + CUT + "-", stub.getRequests().get(before).header("Range"));
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingFileFailsWithoutRetrying() throws Exception {
+        try (HttpStub stub = new HttpStub((count, request, out) -> {
+            if (count > 1) {
+                throw new IOException("Retried a missing file");
+            }
+            HttpStub.respond(out, "404 Not Found", null, 0, 0, "Content-Length: 0");
+        })) {
+            Downloader.download(stub.getUrl("/JavaSE.jar"), new File(temp.getRoot(), "JavaSE.jar"));
+        }
+    }
+}
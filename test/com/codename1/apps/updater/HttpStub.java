@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A minimal HTTP server on the loopback interface for tests. Every request is
+ * answered by the handler which writes the raw response, so a test can send
+ * truncated bodies or drop the connection. The connection is closed after
+ * every response.
+ */
+class HttpStub implements Closeable {
+
+    interface Handler {
+        /**
+         * @param count the number of the request starting at 1
+         * @param request the request line and headers
+         * @param out the raw socket stream
+         */
+        void handle(int count, Request request, OutputStream out) throws IOException;
+    }
+
+    static class Request {
+        final String path;
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        Request(String path) {
+            this.path = path;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    private final ServerSocket server;
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    HttpStub(final Handler handler) throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket s = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+                    String line = in.readLine();
+                    if (line == null) {
+                        continue;
+                    }
+                    Request request = new Request(line.split(" ")[1]);
+                    while ((line = in.readLine()) != null && line.length() > 0) {
+                        int colon = line.indexOf(':');
+                        request.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                    }
+                    requests.add(request);
+                    OutputStream out = s.getOutputStream();
+                    handler.handle(requests.size(), request, out);
+                    out.flush();
+                } catch (IOException err) {
+                    // the server was closed or the client went away
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getLocalPort() + path;
+    }
+
+    List<Request> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Writes the status line, the headers and the given part of the body
+     */
+    static void respond(OutputStream out, String status, byte[] body, int offset, int length,
+            String... headers) throws IOException {
+        StringBuilder b = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        for (String header : headers) {
+            b.append(header).append("\r\n");
+        }
+        b.append("Connection: close\r\n\r\n");
+        out.write(b.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (body != null) {
+            out.write(body, offset, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
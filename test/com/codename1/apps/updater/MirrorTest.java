@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Mirrors a release published in a local directory and updates a project
+ * from the mirror through file URLs
+ */
+public class MirrorTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File server;
+    private File elsewhere;
+    private File mirror;
+    private Properties status;
+
+    @Before
+    public void publish() throws Exception {
+        server = temp.newFolder("server");
+        elsewhere = temp.newFolder("elsewhere");
+        mirror = new File(temp.getRoot(), "mirror");
+        File updates = new File(server, "updates");
+        File ota = new File(server, "OTA");
+        updates.mkdirs();
+        ota.mkdirs();
+
+        status = new Properties();
+        status.setProperty("artifacts", "JavaSEJar,CodenameOneJar,tools");
+        publish(updates, "JavaSEJar", "JavaSE.jar", 1);
+        publish(updates, "CodenameOneJar", "CodenameOne.jar", 2);
+        publish(elsewhere, "tools", "tools.jar", 3);
+        publish(updates, "Updater", "UpdateCodenameOne.jar", 4);
+        // the version the client has so it doesn't replace itself
+        status.setProperty("Updater", "5");
+        status.setProperty("CodenameOneJar.project", "lib/CodenameOne.jar");
+        status.setProperty("JavaSEJar.project", "JavaSE.jar");
+        status.setProperty("tools.url", elsewhere.toURI() + "tools.jar");
+        status.setProperty("tools.project", "lib/tools.jar");
+        store(status, new File(updates, "UpdateStatus.properties"));
+
+        Files.write(new File(ota, "Skins.xml").toPath(),
+                "<Skins><Skin url=\"/iphone.skin\" version=\"3\"/></Skins>".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(ota, "iphone.skin").toPath(), content(5));
+    }
+
+    private void publish(File dir, String key, String name, long seed) throws IOException {
+        byte[] data = content(seed);
+        Files.write(new File(dir, name).toPath(), data);
+        status.setProperty(key, "1");
+        status.setProperty(key + ".path", name);
+        status.setProperty(key + ".sha256", ArtifactStore.toHex(ArtifactStore.createDigest().digest(data)));
+        status.setProperty(key + ".size", "" + data.length);
+    }
+
+    private static byte[] content(long seed) {
+        byte[] b = new byte[10000 + (int) seed];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static void store(Properties p, File file) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            p.store(os, "");
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            p.load(is);
+        }
+        return p;
+    }
+
+    private void runMirror() throws Exception {
+        Mirror.run(mirror, new File(server, "updates").toURI().toString(),
+                new File(server, "OTA").toURI().toString().replaceAll("/$", ""));
+    }
+
+    @Test
+    public void mirrorsTheRelease() throws Exception {
+        runMirror();
+        File updates = new File(mirror, "updates");
+        assertArrayEquals(content(1), Files.readAllBytes(new File(updates, "JavaSE.jar").toPath()));
+        assertArrayEquals(content(3), Files.readAllBytes(new File(updates, "tools.jar").toPath()));
+        assertArrayEquals(content(5), Files.readAllBytes(new File(mirror, "OTA/iphone.skin").toPath()));
+        Properties mirrored = load(new File(updates, "UpdateStatus.properties"));
+        assertEquals("tools.jar", mirrored.getProperty("tools.mirrorUrl"));
+        assertEquals(status.getProperty("tools.url"), mirrored.getProperty("tools.url"));
+
+        // a second run only fetches the status
+        File jar = new File(updates, "JavaSE.jar");
+        jar.setLastModified(1000000L);
+        runMirror();
+        assertEquals(1000000L, jar.lastModified());
+    }
+
+    @Test
+    public void rejectsArtifactsThatDontMatchTheHash() throws Exception {
+        Files.write(new File(server, "updates/JavaSE.jar").toPath(), content(9));
+        try {
+            runMirror();
+            fail("Mirrored a file that doesn't match the published hash");
+        } catch (IOException err) {
+            // expected
+        }
+        // the status is written last so clients never see the new release
+        assertTrue(!new File(mirror, "updates/UpdateStatus.properties").exists());
+    }
+
+    @Test
+    public void updatesProjectFromTheMirror() throws Exception {
+        runMirror();
+        // the mirror must serve everything on its own
+        new File(elsewhere, "tools.jar").delete();
+        File home = temp.newFolder("home");
+        File project = temp.newFolder("project");
+        new File(project, "codenameone_settings.properties").createNewFile();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Duser.home=" + home.getAbsolutePath(),
+                "-Djava.util.prefs.userRoot=" + home.getAbsolutePath(),
+                "-Dcn1.updater.mirror=" + mirror.toURI(), "-Dcn1.updater.headless=true",
+                "-cp", System.getProperty("java.class.path"),
+                UpdateCodenameOne.class.getName(), project.getAbsolutePath())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(temp.getRoot(), "client.log"))
+                .start();
+        assertTrue("The update timed out", p.waitFor(60, TimeUnit.SECONDS));
+        String log = new String(Files.readAllBytes(new File(temp.getRoot(), "client.log").toPath()), StandardCharsets.UTF_8);
+        assertEquals(log, 0, p.exitValue());
+        assertArrayEquals(log, content(1), Files.readAllBytes(new File(project, "JavaSE.jar").toPath()));
+        assertArrayEquals(log, content(2), Files.readAllBytes(new File(project, "lib/CodenameOne.jar").toPath()));
+        assertArrayEquals(log, content(3), Files.readAllBytes(new File(project, "lib/tools.jar").toPath()));
+    }
+}
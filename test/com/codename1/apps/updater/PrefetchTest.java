@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prefetching a release into the store and activating it on the next update
+ * without going to the server
+ */
+public class PrefetchTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File updates;
+    private File home;
+    private File project;
+    private String hash;
+
+    @Before
+    public void publish() throws Exception {
+        File server = temp.newFolder("server");
+        home = temp.newFolder("home");
+        project = temp.newFolder("project");
+        new File(project, "codenameone_settings.properties").createNewFile();
+        updates = new File(server, "updates");
+        File ota = new File(server, "OTA");
+        updates.mkdirs();
+        ota.mkdirs();
+        Files.write(new File(ota, "Skins.xml").toPath(), "<Skins/>".getBytes(StandardCharsets.UTF_8));
+        publish(1);
+    }
+
+    /**
+     * Publishes the given version of JavaSE.jar
+     */
+    private void publish(int version) throws IOException {
+        Properties status = new Properties();
+        status.setProperty("artifacts", "JavaSEJar");
+        byte[] data = content(version);
+        Files.write(new File(updates, "JavaSE.jar").toPath(), data);
+        hash = ArtifactStore.toHex(ArtifactStore.createDigest().digest(data));
+        status.setProperty("JavaSEJar", "" + version);
+        status.setProperty("JavaSEJar.path", "JavaSE.jar");
+        status.setProperty("JavaSEJar.project", "JavaSE.jar");
+        status.setProperty("JavaSEJar.sha256", hash);
+        // the version the client has so it doesn't replace itself
+        status.setProperty("Updater", "5");
+        store(status, new File(updates, "UpdateStatus.properties"));
+    }
+
+    private static byte[] content(int version) {
+        byte[] b = new byte[10000];
+        new Random(version).nextBytes(b);
+        return b;
+    }
+
+    private static void store(Properties p, File file) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            p.store(os, "");
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            p.load(is);
+        }
+        return p;
+    }
+
+    /**
+     * Runs the updater in another JVM with the temporary home and returns its
+     * output
+     */
+    private String run(String... args) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        File log = temp.newFile();
+        String[] command = new String[8 + args.length];
+        System.arraycopy(new String[]{java, "-Duser.home=" + home.getAbsolutePath(),
+            "-Djava.util.prefs.userRoot=" + home.getAbsolutePath(),
+            "-Dcn1.updater.mirror=" + updates.getParentFile().toURI(), "-Dcn1.updater.headless=true",
+            "-cp", System.getProperty("java.class.path"), UpdateCodenameOne.class.getName()}, 0, command, 0, 8);
+        System.arraycopy(args, 0, command, 8, args.length);
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        assertTrue("The updater timed out", p.waitFor(60, TimeUnit.SECONDS));
+        String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+        assertEquals(output, 0, p.exitValue());
+        return output;
+    }
+
+    private File getSystemDir() {
+        return new File(home, ".codenameone");
+    }
+
+    @Test
+    public void prefetchOnlyStagesTheRelease() throws Exception {
+        String output = run("-prefetch");
+        assertTrue(output, new File(getSystemDir(), "Staged.properties").exists());
+        assertTrue(output, new File(getSystemDir(), "store" + File.separator + hash).exists());
+        assertFalse(output, new File(getSystemDir(), "UpdateStatus.properties").exists());
+
+        // the status didn't change so the second prefetch only checks it
+        output = run("-prefetch");
+        assertTrue(output, output.contains("The staged release is current"));
+    }
+
+    @Test
+    public void updateActivatesTheStagedRelease() throws Exception {
+        run(project.getAbsolutePath());
+        publish(2);
+        run("-prefetch");
+        assertArrayEquals("The prefetch leaves the installed release alone",
+                content(1), Files.readAllBytes(new File(project, "JavaSE.jar").toPath()));
+
+        // a day later the next update activates the staged release, from the
+        // store alone since the server no longer has the file
+        File statusFile = new File(getSystemDir(), "UpdateStatus.properties");
+        Properties status = load(statusFile);
+        status.setProperty("lastUpdate", "0");
+        store(status, statusFile);
+        new File(updates, "JavaSE.jar").delete();
+        String output = run(project.getAbsolutePath());
+        assertTrue(output, output.contains("Activating the prefetched update"));
+        assertArrayEquals(output, content(2), Files.readAllBytes(new File(project, "JavaSE.jar").toPath()));
+        assertFalse(output, new File(getSystemDir(), "Staged.properties").exists());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replacing files that can't be replaced right away
+ */
+public class ReplaceQueueTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(temp.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void replacesRightAway() throws IOException {
+        File queueFile = new File(temp.getRoot(), "PendingReplace.properties");
+        ReplaceQueue queue = new ReplaceQueue(queueFile);
+        File destination = write("JavaSE.jar", "old");
+        assertTrue(queue.replace(write("JavaSE.new", "new"), destination));
+        assertEquals("new", read(destination));
+        assertFalse(queue.hasPending());
+    }
+
+    @Test
+    public void queuesUntilTheDestinationCanBeReplaced() throws IOException {
+        File queueFile = new File(temp.getRoot(), "PendingReplace.properties");
+        // a directory that isn't empty can't be replaced by a file, which
+        // stands in for a jar that another process holds open
+        File destination = temp.newFolder("JavaSE.jar");
+        write("JavaSE.jar/content", "locked");
+        File staged = write("JavaSE.new", "new");
+
+        assertFalse(new ReplaceQueue(queueFile).replace(staged, destination));
+        assertTrue(queueFile.exists());
+        assertEquals(1, new ReplaceQueue(queueFile).retry());
+        assertTrue(staged.exists());
+
+        new File(destination, "content").delete();
+        destination.delete();
+        ReplaceQueue queue = new ReplaceQueue(queueFile);
+        assertEquals(0, queue.retry());
+        assertEquals("new", read(destination));
+        assertFalse(queue.hasPending());
+        // the queue is written through a temporary file that is moved into place
+        assertEquals(0, temp.getRoot().list((dir, name) -> name.endsWith(".tmp")).length);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Properties;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifying the signed update status
+ */
+public class SignatureVerifierTest {
+
+    private static final String HASH_A = "a904122efae3da541dfbeb4fc4c043f8ae0d13a7c4e95e64ccdb7bb4ab6ea4e8";
+    private static final String HASH_B = "a02ac674c6fbb29adf5eb1a54e3de273e8fcc13d1ae39258c12b142148df67bc";
+
+    private static KeyPair keys;
+    private static SignatureVerifier verifier;
+
+    @BeforeClass
+    public static void createKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keys = generator.generateKeyPair();
+        verifier = new SignatureVerifier(keys.getPublic());
+    }
+
+    private static Properties status() {
+        Properties p = new Properties();
+        p.setProperty("release", "7");
+        p.setProperty("Updater", "5");
+        p.setProperty("Updater.sha256", HASH_A);
+        p.setProperty("artifacts", "JavaSEJar,cef-linux");
+        p.setProperty("JavaSEJar", "3");
+        p.setProperty("JavaSEJar.sha256", HASH_A);
+        p.setProperty("cef-linux", "2");
+        p.setProperty("cef-linux.sha256", HASH_B);
+        p.setProperty("cef-linux.url", "https://cdn.example.com/cef-linux.zip");
+        p.setProperty("cef-linux.os", "Linux");
+        return p;
+    }
+
+    private static Properties sign(Properties p) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(keys.getPrivate());
+        sig.update(SignatureVerifier.getSignedContent(p));
+        p.setProperty("signature", Base64.getEncoder().encodeToString(sig.sign()));
+        return p;
+    }
+
+    private static void assertRejected(Properties p, String minRelease) {
+        try {
+            UpdateCodenameOne.verifySignatures(p, minRelease, verifier);
+            fail("Accepted " + p);
+        } catch (IOException err) {
+            // expected
+        }
+    }
+
+    @Test
+    public void acceptsSignedStatus() throws Exception {
+        Properties p = sign(status());
+        UpdateCodenameOne.verifySignatures(p, "7", verifier);
+        // added by a mirror and by the client after the server signed
+        p.setProperty("cef-linux.mirrorUrl", "cef-linux.zip");
+        p.setProperty("UpdateStatus.ETag", "\"x\"");
+        p.setProperty("prefetched", "1");
+        UpdateCodenameOne.verifySignatures(p, null, verifier);
+    }
+
+    @Test
+    public void rejectsModifiedStatus() throws Exception {
+        Properties p = sign(status());
+        p.setProperty("cef-linux.extract", ".");
+        assertRejected(p, null);
+
+        p = sign(status());
+        p.setProperty("JavaSEJar.sha256", HASH_B);
+        p.setProperty("cef-linux.sha256", HASH_A);
+        assertRejected(p, null);
+
+        p = sign(status());
+        p.remove("JavaSEJar.sha256");
+        assertRejected(p, null);
+
+        p = sign(status());
+        p.remove("signature");
+        assertRejected(p, null);
+    }
+
+    @Test
+    public void requiresHashForEveryPublishedArtifact() throws Exception {
+        Properties p = status();
+        p.remove("JavaSEJar.sha256");
+        assertRejected(sign(p), null);
+
+        p = status();
+        p.remove("Updater.sha256");
+        assertRejected(sign(p), null);
+
+        p = status();
+        p.remove("release");
+        assertRejected(sign(p), null);
+    }
+
+    @Test
+    public void rejectsOlderRelease() throws Exception {
+        assertRejected(sign(status()), "8");
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Project updates delegated to a daemon over the loopback socket. The daemon,
+ * the clients and the server are separate processes and file URLs in the
+ * temporary folder.
+ */
+public class UpdateDaemonTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File server;
+    private File home;
+    private File project;
+    private Process daemon;
+
+    @Before
+    public void publish() throws Exception {
+        server = temp.newFolder("server");
+        home = temp.newFolder("home");
+        project = temp.newFolder("project");
+        new File(project, "codenameone_settings.properties").createNewFile();
+        File updates = new File(server, "updates");
+        File ota = new File(server, "OTA");
+        updates.mkdirs();
+        ota.mkdirs();
+
+        Properties status = new Properties();
+        status.setProperty("artifacts", "JavaSEJar");
+        byte[] data = content();
+        Files.write(new File(updates, "JavaSE.jar").toPath(), data);
+        status.setProperty("JavaSEJar", "1");
+        status.setProperty("JavaSEJar.path", "JavaSE.jar");
+        status.setProperty("JavaSEJar.project", "JavaSE.jar");
+        status.setProperty("JavaSEJar.sha256", ArtifactStore.toHex(ArtifactStore.createDigest().digest(data)));
+        // the version the client has so it doesn't replace itself
+        status.setProperty("Updater", "5");
+        try (OutputStream os = new FileOutputStream(new File(updates, "UpdateStatus.properties"))) {
+            status.store(os, "");
+        }
+        Files.write(new File(ota, "Skins.xml").toPath(), "<Skins/>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void stopDaemon() throws Exception {
+        if (daemon != null) {
+            daemon.destroyForcibly().waitFor();
+        }
+    }
+
+    private static byte[] content() {
+        byte[] b = new byte[10000];
+        new Random(1).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Starts the updater in another JVM with the temporary home and the
+     * published release
+     */
+    private Process start(String log, String... args) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-Duser.home=" + home.getAbsolutePath(),
+                "-Djava.util.prefs.userRoot=" + home.getAbsolutePath(),
+                "-Dcn1.updater.mirror=" + server.toURI(), "-Dcn1.updater.headless=true",
+                "-Dcn1.updater.daemonTimeout=1",
+                "-cp", System.getProperty("java.class.path"), UpdateCodenameOne.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(temp.getRoot(), log)).start();
+    }
+
+    private String read(String log) throws IOException {
+        return new String(Files.readAllBytes(new File(temp.getRoot(), log).toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Runs a client to completion and returns its output
+     */
+    private String run(String log, String... args) throws Exception {
+        Process p = start(log, args);
+        assertTrue("The client timed out", p.waitFor(60, TimeUnit.SECONDS));
+        String output = read(log);
+        assertEquals(output, 0, p.exitValue());
+        return output;
+    }
+
+    private File getDaemonFile() {
+        return new File(home, ".codenameone" + File.separator + "UpdateDaemon.properties");
+    }
+
+    private Properties startDaemon() throws Exception {
+        daemon = start("daemon.log", "-daemon");
+        File daemonFile = getDaemonFile();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!daemonFile.exists() || daemonFile.length() == 0) {
+            assertTrue("The daemon didn't start: " + read("daemon.log"), System.currentTimeMillis() < deadline && daemon.isAlive());
+            Thread.sleep(100);
+        }
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(daemonFile)) {
+            p.load(is);
+        }
+        return p;
+    }
+
+    /**
+     * Sends a raw request line and returns the first line of the response
+     */
+    private static String send(Properties daemonFile, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(daemonFile.getProperty("port")))) {
+            socket.setSoTimeout(30000);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(request + "\n");
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+        }
+    }
+
+    @Test
+    public void updatesTheProjectThroughTheDaemon() throws Exception {
+        Properties daemonFile = startDaemon();
+        String output = run("client.log", project.getAbsolutePath());
+        assertArrayEquals(output, content(), Files.readAllBytes(new File(project, "JavaSE.jar").toPath()));
+        // the daemon did the work and the client printed its progress
+        assertTrue(output, output.contains("Updated the file: " + new File(project, "JavaSE.jar").getAbsolutePath()));
+        assertTrue(read("daemon.log"), read("daemon.log").contains("Updating the file: " + new File(project, "JavaSE.jar").getAbsolutePath()));
+
+        // requests without the token are refused
+        assertEquals("ERROR Invalid request", send(daemonFile, "wrong\tsync\tnormal\t" + project.getAbsolutePath()));
+        assertEquals("ERROR Invalid request", send(daemonFile, daemonFile.getProperty("token") + "\tsync"));
+
+        run("stop.log", "-daemon", "stop");
+        assertTrue(daemon.waitFor(30, TimeUnit.SECONDS));
+        assertFalse(getDaemonFile().exists());
+    }
+
+    @Test
+    public void slowSyncKeepsTheClientWaiting() throws Exception {
+        startDaemon();
+        run("first.log", project.getAbsolutePath());
+        new File(project, "JavaSE.jar").delete();
+        String output;
+        try (UpdateLock lock = new UpdateLock(new File(home, ".codenameone" + File.separator + "UpdateStatus.lock"))) {
+            // holding the exclusive lock keeps the daemon's sync waiting for
+            // longer than the client's one second read timeout
+            assertTrue(lock.acquire(false, 30000));
+            Process client = start("client.log", project.getAbsolutePath());
+            Thread.sleep(3000);
+            assertTrue(client.isAlive());
+            lock.release();
+            assertTrue(client.waitFor(60, TimeUnit.SECONDS));
+            output = read("client.log");
+        }
+        assertFalse(output, output.contains("updating without it"));
+        assertArrayEquals(output, content(), Files.readAllBytes(new File(project, "JavaSE.jar").toPath()));
+        assertTrue(read("daemon.log"), read("daemon.log").contains("Updating the file: " + new File(project, "JavaSE.jar").getAbsolutePath()));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Locking between updater processes, the other process is a separate JVM
+ * since a JVM can only hold one lock on the file
+ */
+public class UpdateLockTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File lockFile;
+    private Process holder;
+
+    /**
+     * Holds the lock given on the command line until it's killed
+     */
+    public static void main(String[] args) throws Exception {
+        try (UpdateLock lock = new UpdateLock(new File(args[0]))) {
+            if (lock.acquire(Boolean.parseBoolean(args[1]), 10000)) {
+                System.out.println("locked");
+                System.out.flush();
+                Thread.sleep(60000);
+            }
+        }
+    }
+
+    @Before
+    public void createLockFile() {
+        lockFile = new File(temp.getRoot(), "UpdateStatus.lock");
+    }
+
+    @After
+    public void release() throws Exception {
+        if (holder != null) {
+            holder.destroyForcibly().waitFor();
+        }
+    }
+
+    private void holdInAnotherProcess(boolean shared) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        holder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), UpdateLockTest.class.getName(),
+                lockFile.getAbsolutePath(), "" + shared).redirectErrorStream(true).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(holder.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("locked", in.readLine());
+    }
+
+    @Test
+    public void exclusiveLockBlocksEveryone() throws Exception {
+        holdInAnotherProcess(false);
+        try (UpdateLock lock = new UpdateLock(lockFile)) {
+            long start = System.currentTimeMillis();
+            assertFalse(lock.acquire(true, 300));
+            assertTrue(System.currentTimeMillis() - start >= 300);
+            assertFalse(lock.acquire(false, 0));
+        }
+    }
+
+    @Test
+    public void sharedLocksCoexist() throws Exception {
+        holdInAnotherProcess(true);
+        try (UpdateLock lock = new UpdateLock(lockFile)) {
+            assertTrue(lock.acquire(true, 0));
+            // switching to exclusive releases our shared lock but the other remains
+            assertFalse(lock.acquire(false, 300));
+            assertTrue(lock.acquire(true, 0));
+        }
+    }
+
+    @Test
+    public void lockOfDeadProcessIsReleased() throws Exception {
+        holdInAnotherProcess(false);
+        try (UpdateLock lock = new UpdateLock(lockFile)) {
+            assertFalse(lock.acquire(false, 0));
+            holder.destroyForcibly().waitFor();
+            assertTrue(lock.acquire(false, 5000));
+        }
+    }
+
+    @Test
+    public void waiterGetsTheLockOnceReleased() throws Exception {
+        holdInAnotherProcess(false);
+        new Thread(() -> {
+            try {
+                Thread.sleep(500);
+                holder.destroyForcibly();
+            } catch (InterruptedException err) {
+                // the test fails on its own
+            }
+        }).start();
+        try (UpdateLock lock = new UpdateLock(lockFile)) {
+            assertTrue(lock.acquire(false, 10000));
+        }
+    }
+}
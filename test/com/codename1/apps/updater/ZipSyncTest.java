@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *  
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ * 
+ * Please contact Codename One through http://www.codenameone.com/ if you 
+ * need additional information or have any questions.
+ */
+package com.codename1.apps.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Incremental extraction of zips
+ */
+public class ZipSyncTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Creates a zip from name and content pairs
+     */
+    private File zip(String name, String... entries) throws IOException {
+        File zip = new File(temp.getRoot(), name);
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (int iter = 0; iter < entries.length; iter += 2) {
+                zos.putNextEntry(new ZipEntry(entries[iter]));
+                zos.write(entries[iter + 1].getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            }
+        }
+        return zip;
+    }
+
+    private static String read(File dir, String name) throws IOException {
+        return new String(Files.readAllBytes(new File(dir, name).toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void extractsOnlyWhatChanged() throws Exception {
+        File dir = new File(temp.getRoot(), "cef");
+        File v1 = zip("v1.zip", "a.txt", "one", "lib/b.txt", "two", "lib/c.txt", "three");
+        assertEquals(3, ZipSync.sync(v1, dir, 1));
+        assertEquals("two", read(dir, "lib/b.txt"));
+        assertEquals(0, ZipSync.sync(v1, dir, 1));
+
+        File unchanged = new File(dir, "a.txt");
+        unchanged.setLastModified(1000000L);
+        File v2 = zip("v2.zip", "a.txt", "one", "lib/b.txt", "TWO", "lib/d.txt", "four");
+        // b changed, d added and c removed
+        assertEquals(3, ZipSync.sync(v2, dir, 4));
+        assertEquals(1000000L, unchanged.lastModified());
+        assertEquals("TWO", read(dir, "lib/b.txt"));
+        assertEquals("four", read(dir, "lib/d.txt"));
+        assertFalse(new File(dir, "lib/c.txt").exists());
+    }
+
+    @Test
+    public void withoutIndexRemovesUnknownFiles() throws Exception {
+        File dir = new File(temp.getRoot(), "cef");
+        new File(dir, "old").mkdirs();
+        Files.write(new File(dir, "old/stale.txt").toPath(), "x".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "a.txt").toPath(), "one".getBytes(StandardCharsets.UTF_8));
+        File zip = zip("v1.zip", "a.txt", "one", "b.txt", "two");
+        // a.txt matches the entry so only b.txt is written and stale.txt deleted
+        assertEquals(2, ZipSync.sync(zip, dir, 2));
+        assertFalse(new File(dir, "old").exists());
+        assertTrue(new File(dir, ZipSync.INDEX_FILE).exists());
+    }
+
+    @Test
+    public void rewritesTruncatedFiles() throws Exception {
+        File dir = new File(temp.getRoot(), "cef");
+        File zip = zip("v1.zip", "a.txt", "one", "b.txt", "two");
+        ZipSync.sync(zip, dir, 1);
+        // an extraction that was interrupted part way
+        Files.write(new File(dir, "b.txt").toPath(), "t".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, ZipSync.sync(zip, dir, 1));
+        assertEquals("two", read(dir, "b.txt"));
+    }
+
+    @Test
+    public void rejectsEntriesOutsideOfTheDirectory() throws Exception {
+        File dir = new File(temp.getRoot(), "cef");
+        try {
+            ZipSync.sync(zip("evil.zip", "../evil.txt", "x"), dir, 1);
+            fail("Extracted outside of the directory");
+        } catch (IOException err) {
+            // expected
+        }
+        assertFalse(new File(temp.getRoot(), "evil.txt").exists());
+    }
+}